@@ -0,0 +1,193 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+
+package metworks.facade;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import metworks.facade.FacadePipeline.Stage;
+import toxi.geom.AABB;
+import toxi.geom.mesh.WETriangleMesh;
+
+/**
+ * Writes STL files on a dedicated background thread, so that decimation and
+ * full resolution voxelization don't block the (interactive) calling thread.
+ * Only one export can be in progress at a time, further requests are rejected
+ * until it has finished. The outcome of the most recent export is available
+ * via {@link #getStatus()}.
+ */
+public class BackgroundExporter {
+
+	/**
+	 * Single threaded executor for export jobs
+	 */
+	private final ExecutorService executor;
+
+	private volatile boolean isExporting;
+
+	/**
+	 * Human readable status of the most recent export
+	 */
+	private volatile String status = "";
+
+	public BackgroundExporter() {
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "facade-exporter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Optionally decimates the given mesh and saves it as STL file. The mesh
+	 * itself isn't modified.
+	 * 
+	 * @param mesh
+	 *            finished mesh
+	 * @param reduction
+	 *            percentage of faces to remove (0 = no decimation)
+	 * @param path
+	 *            STL file path
+	 * @return true, if the export has been started
+	 */
+	public synchronized boolean exportMesh(final WETriangleMesh mesh,
+			final int reduction, final String path) {
+		if (isExporting) {
+			return false;
+		}
+		start(path);
+		executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					WETriangleMesh result = mesh;
+					if (reduction > 0) {
+						QuadricDecimator decimator = new QuadricDecimator();
+						decimator.setTargetFaces((int) ((long) mesh
+								.getNumFaces() * (100 - reduction) / 100));
+						result = decimator.decimate(mesh);
+					}
+					result.saveAsSTL(path);
+					finish(path, result.getNumFaces());
+				} catch (Throwable e) {
+					fail(e);
+				} finally {
+					isExporting = false;
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Brings the pipeline's displaced lattice up to date (on the calling
+	 * thread) and streams its unsmoothed iso surface into an STL file in the
+	 * background, using the pipeline's current mesh settings.
+	 * 
+	 * @param pipeline
+	 * @param path
+	 *            STL file path
+	 * @return true, if the export has been started
+	 * @see FacadePipeline#exportStreamedSTL(String)
+	 */
+	public synchronized boolean exportStreamed(FacadePipeline pipeline,
+			final String path) {
+		if (isExporting) {
+			return false;
+		}
+		pipeline.update(Stage.DISPLACEMENT);
+		final LatticeGraph lattice = pipeline.getDisplacedLattice();
+		final AABB bounds = pipeline.getBounds3D();
+		final int res = pipeline.getVoxelRes();
+		final float strutRadius = pipeline.getStrutRadius();
+		final boolean useMappedVolume = pipeline.isUsingMappedVolume();
+		final boolean useDualContouring = pipeline.isUsingDualContouring();
+		start(path);
+		executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					int numTriangles = FacadePipeline.exportStreamedSTL(
+							lattice, bounds, res, strutRadius,
+							useMappedVolume, useDualContouring, path);
+					finish(path, numTriangles);
+				} catch (Throwable e) {
+					fail(e);
+				} finally {
+					isExporting = false;
+				}
+			}
+		});
+		return true;
+	}
+
+	private void fail(Throwable e) {
+		e.printStackTrace();
+		status = "export failed: " + e.getMessage();
+	}
+
+	private void finish(String path, int numFaces) {
+		status = "saved " + new File(path).getName() + " (" + numFaces
+				+ " faces)";
+	}
+
+	/**
+	 * @return status of the current or most recent export (empty, if there
+	 *         hasn't been any yet)
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return true, if an export is in progress
+	 */
+	public boolean isExporting() {
+		return isExporting;
+	}
+
+	private void start(String path) {
+		isExporting = true;
+		status = "exporting " + new File(path).getName() + "...";
+	}
+}
@@ -0,0 +1,306 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package metworks.facade;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import metworks.facade.FacadePipeline.Stage;
+import toxi.geom.AABB;
+import toxi.geom.mesh.WETriangleMesh;
+
+/**
+ * Builds the facade's iso surface mesh asynchronously on a dedicated
+ * background thread, so that the (interactive) calling thread isn't blocked.
+ * Builds are progressive: meshes are first created at 1/4 and 1/2 of the voxel
+ * resolution and each level is published as soon as it's ready, followed by
+ * the full resolution version. A new request cancels any build still in
+ * progress.
+ * Finished meshes are never modified and are swapped in atomically, so
+ * {@link #getMesh()} can be used for drawing at any time.
+ */
+public class BackgroundMeshBuilder {
+
+	/**
+	 * Preview levels are built using the full voxel resolution divided by
+	 * these factors (in this order)
+	 */
+	private static final int[] PREVIEW_RES_DIVIDERS = { 4, 2 };
+
+	/**
+	 * Preview levels with a resolution less than this are skipped
+	 */
+	public static final int MIN_PREVIEW_RES = 16;
+
+	/**
+	 * Names of the timers used for preview & final builds
+	 */
+	private static final String PREVIEW_TIMER = "voxelizeStructure (preview)";
+	private static final String FINAL_TIMER = "voxelizeStructure";
+
+	private final FacadePipeline pipeline;
+
+	/**
+	 * Single threaded executor for build jobs
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Most recently finished mesh (preview or final)
+	 */
+	private final AtomicReference<WETriangleMesh> mesh = new AtomicReference<WETriangleMesh>();
+
+	private volatile boolean isPreview;
+	private volatile boolean isBuilding;
+
+	/**
+	 * Voxel resolution of the current mesh
+	 */
+	private volatile int meshRes;
+
+	/**
+	 * Incremented for each new request, results of older builds are ignored
+	 */
+	private int generation;
+
+	private Future<?> currentJob;
+
+	/**
+	 * Optional instrumentation of mesh builds (null = disabled)
+	 */
+	private volatile StageMetrics metrics;
+
+	/**
+	 * Inputs of the most recent request
+	 */
+	private LatticeGraph lastLattice;
+	private int lastRes, lastSmoothIterations;
+	private float lastStrutRadius;
+	private boolean lastUseDualContouring;
+	private boolean lastUseTaubin;
+
+	/**
+	 * Creates a new builder for the given pipeline.
+	 * 
+	 * @param pipeline
+	 */
+	public BackgroundMeshBuilder(FacadePipeline pipeline) {
+		this.pipeline = pipeline;
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "facade-mesher");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Cancels the build currently in progress (if any). The most recently
+	 * finished mesh stays available.
+	 */
+	public synchronized void cancel() {
+		generation++;
+		if (currentJob != null) {
+			currentJob.cancel(true);
+			currentJob = null;
+		}
+		lastLattice = null;
+		isBuilding = false;
+	}
+
+	/**
+	 * @return most recently finished mesh (or null, if none has been built
+	 *         yet)
+	 */
+	public WETriangleMesh getMesh() {
+		return mesh.get();
+	}
+
+	/**
+	 * @return voxel resolution used for the current mesh (0 = no mesh yet)
+	 */
+	public int getMeshRes() {
+		return meshRes;
+	}
+
+	/**
+	 * @return true, if a build is in progress
+	 */
+	public boolean isBuilding() {
+		return isBuilding;
+	}
+
+	/**
+	 * @return true, if the current mesh is a low resolution preview
+	 */
+	public boolean isPreview() {
+		return isPreview;
+	}
+
+	/**
+	 * Brings the pipeline's displaced lattice up to date (on the calling
+	 * thread) and starts building a new mesh in the background, cancelling
+	 * any build still in progress. Nothing is done if the inputs haven't
+	 * changed since the last request.
+	 * 
+	 * @return true, if a new build has been started
+	 */
+	public synchronized boolean requestMesh() {
+		pipeline.update(Stage.DISPLACEMENT);
+		final LatticeGraph lattice = pipeline.getDisplacedLattice();
+		final AABB bounds = pipeline.getBounds3D();
+		final int res = pipeline.getVoxelRes();
+		final float strutRadius = pipeline.getStrutRadius();
+		final boolean useDualContouring = pipeline.isUsingDualContouring();
+		final int smoothIterations = pipeline.getSmoothIterations();
+		final boolean useTaubin = pipeline.isUsingTaubinSmooth();
+		if (lattice == lastLattice && res == lastRes
+				&& strutRadius == lastStrutRadius
+				&& useDualContouring == lastUseDualContouring
+				&& smoothIterations == lastSmoothIterations
+				&& useTaubin == lastUseTaubin) {
+			return false;
+		}
+		cancel();
+		lastLattice = lattice;
+		lastRes = res;
+		lastStrutRadius = strutRadius;
+		lastUseDualContouring = useDualContouring;
+		lastSmoothIterations = smoothIterations;
+		lastUseTaubin = useTaubin;
+		final int jobID = generation;
+		isBuilding = true;
+		currentJob = executor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				build(jobID, lattice, bounds, res, strutRadius,
+						useDualContouring, smoothIterations, useTaubin);
+			}
+		});
+		return true;
+	}
+
+	private void build(int jobID, LatticeGraph lattice, AABB bounds,
+			int res, float strutRadius, boolean useDualContouring,
+			int smoothIterations, boolean useTaubin) {
+		boolean isComplete = false;
+		try {
+			for (int divider : PREVIEW_RES_DIVIDERS) {
+				int previewRes = res / divider;
+				if (previewRes >= MIN_PREVIEW_RES) {
+					publish(jobID, createMesh(lattice, bounds, previewRes,
+							strutRadius, useDualContouring, smoothIterations,
+							useTaubin, PREVIEW_TIMER),
+							previewRes, true);
+				}
+			}
+			publish(jobID, createMesh(lattice, bounds, res, strutRadius,
+					useDualContouring, smoothIterations, useTaubin,
+					FINAL_TIMER), res, false);
+			isComplete = true;
+		} catch (Throwable e) {
+			// exceptions caused by cancellation (interrupts) are expected
+			if (!Thread.currentThread().isInterrupted()) {
+				e.printStackTrace();
+			}
+		} finally {
+			if (!isComplete) {
+				// failed builds (incl. errors like OutOfMemoryError) must not
+				// block exports or future requests for the same inputs
+				synchronized (this) {
+					if (jobID == generation) {
+						isBuilding = false;
+						lastLattice = null;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calls {@link FacadePipeline#createMesh} and measures its execution with
+	 * the timer of the given name (if metrics are enabled).
+	 */
+	private WETriangleMesh createMesh(LatticeGraph lattice, AABB bounds,
+			int res, float strutRadius, boolean useDualContouring,
+			int smoothIterations, boolean useTaubin, String timerName) {
+		StageMetrics m = metrics;
+		StageMetrics.Timer timer = m != null ? m.getTimer(timerName) : null;
+		if (timer != null) {
+			timer.start();
+		}
+		try {
+			return FacadePipeline.createMesh(lattice, bounds, res, strutRadius,
+					useDualContouring, smoothIterations, useTaubin);
+		} finally {
+			if (timer != null) {
+				timer.stop();
+			}
+		}
+	}
+
+	/**
+	 * Enables instrumentation of mesh builds.
+	 * 
+	 * @param metrics
+	 *            metrics instance (or null to disable)
+	 */
+	public void setMetrics(StageMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Swaps in the given mesh, but only if it's the result of the most recent
+	 * request.
+	 */
+	private synchronized void publish(int jobID, WETriangleMesh m, int res,
+			boolean preview) {
+		if (jobID == generation) {
+			mesh.set(m);
+			meshRes = res;
+			isPreview = preview;
+			if (!preview) {
+				isBuilding = false;
+				currentJob = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import toxi.geom.Vec3D;
+import toxi.volume.VolumetricSpace;
+
+/**
+ * Sparse volumetric space implementation which splits the voxel grid into
+ * bricks of 8x8x8 voxels. Bricks are only allocated when a non-zero value is
+ * written into them, all other voxels implicitly have a value of zero. Since
+ * the facade lattice only occupies a small fraction of its bounding box, this
+ * reduces memory usage dramatically compared to a dense array and allows for
+ * much higher resolutions.
+ * 
+ * Brick allocation is thread safe, so multiple threads can write to the
+ * volume concurrently as long as they don't update the same voxels (e.g.
+ * when using the {@link LatticeRasterizer}).
+ */
+public class BrickedVolumetricSpace extends VolumetricSpace {
+
+	/**
+	 * Number of bits used for the brick size (8 = 2^3)
+	 */
+	public static final int BRICK_BITS = 3;
+
+	/**
+	 * Brick size along each axis
+	 */
+	public static final int BRICK_SIZE = 1 << BRICK_BITS;
+
+	private static final int BRICK_MASK = BRICK_SIZE - 1;
+
+	/**
+	 * Number of voxels per brick
+	 */
+	private static final int BRICK_VOLUME = BRICK_SIZE * BRICK_SIZE
+			* BRICK_SIZE;
+
+	/**
+	 * Number of bricks along each axis
+	 */
+	public final int bricksX, bricksY, bricksZ;
+
+	/**
+	 * Brick table, unallocated bricks are null
+	 */
+	private AtomicReferenceArray<float[]> bricks;
+
+	/**
+	 * Creates a new empty volume of the given physical size & resolution.
+	 * 
+	 * @param scale
+	 * @param resX
+	 * @param resY
+	 * @param resZ
+	 */
+	public BrickedVolumetricSpace(Vec3D scale, int resX, int resY, int resZ) {
+		super(scale, resX, resY, resZ);
+		bricksX = (resX + BRICK_MASK) >> BRICK_BITS;
+		bricksY = (resY + BRICK_MASK) >> BRICK_BITS;
+		bricksZ = (resZ + BRICK_MASK) >> BRICK_BITS;
+		bricks = new AtomicReferenceArray<float[]>(bricksX * bricksY * bricksZ);
+	}
+
+	@Override
+	public void clear() {
+		bricks = new AtomicReferenceArray<float[]>(bricks.length());
+	}
+
+	/**
+	 * Sets all voxels on the sides of the volume to zero. Only touches
+	 * allocated bricks.
+	 */
+	@Override
+	public void closeSides() {
+		for (int z = 0; z < resZ; z++) {
+			boolean isSideZ = (z == 0 || z == resZ1);
+			for (int y = 0; y < resY; y++) {
+				if (isSideZ || y == 0 || y == resY1) {
+					for (int x = 0; x < resX; x++) {
+						clearVoxel(x, y, z);
+					}
+				} else {
+					clearVoxel(0, y, z);
+					clearVoxel(resX1, y, z);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resets a single voxel to zero (if its brick exists).
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	private void clearVoxel(int x, int y, int z) {
+		float[] brick = bricks.get(getBrickIndex(x, y, z));
+		if (brick != null) {
+			brick[getOffsetInBrick(x, y, z)] = 0;
+		}
+	}
+
+	/**
+	 * Returns the brick for the given voxel, allocating it if necessary.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return brick data array
+	 */
+	private float[] getOrCreateBrick(int x, int y, int z) {
+		int id = getBrickIndex(x, y, z);
+		float[] brick = bricks.get(id);
+		if (brick == null) {
+			brick = new float[BRICK_VOLUME];
+			if (!bricks.compareAndSet(id, null, brick)) {
+				// another thread has been faster
+				brick = bricks.get(id);
+			}
+		}
+		return brick;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return index of the brick containing the given voxel
+	 */
+	public final int getBrickIndex(int x, int y, int z) {
+		return (x >> BRICK_BITS)
+				+ ((y >> BRICK_BITS) + (z >> BRICK_BITS) * bricksY) * bricksX;
+	}
+
+	/**
+	 * @return number of currently allocated bricks
+	 */
+	public int getNumAllocatedBricks() {
+		int num = 0;
+		for (int i = 0, n = bricks.length(); i < n; i++) {
+			if (bricks.get(i) != null) {
+				num++;
+			}
+		}
+		return num;
+	}
+
+	private static int getOffsetInBrick(int x, int y, int z) {
+		return (x & BRICK_MASK)
+				+ ((y & BRICK_MASK) + (z & BRICK_MASK) * BRICK_SIZE)
+				* BRICK_SIZE;
+	}
+
+	@Override
+	public final float getVoxelAt(int index) {
+		int x = index % resX;
+		int y = (index / resX) % resY;
+		int z = index / sliceRes;
+		return getVoxelAt(x, y, z);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return voxel value at the given grid position
+	 */
+	public final float getVoxelAt(int x, int y, int z) {
+		float[] brick = bricks.get(getBrickIndex(x, y, z));
+		return brick != null ? brick[getOffsetInBrick(x, y, z)] : 0;
+	}
+
+	/**
+	 * Checks if the brick with the given brick coordinates has been allocated
+	 * (i.e. if any voxel in it might be non-zero).
+	 * 
+	 * @param bx
+	 * @param by
+	 * @param bz
+	 * @return true, if brick exists
+	 */
+	public final boolean isBrickAllocated(int bx, int by, int bz) {
+		return bricks.get(bx + (by + bz * bricksY) * bricksX) != null;
+	}
+
+	@Override
+	public final void setVoxelAt(int index, float value) {
+		if (index >= 0 && index < numCells) {
+			int x = index % resX;
+			int y = (index / resX) % resY;
+			int z = index / sliceRes;
+			setVoxelAt(x, y, z, value);
+		}
+	}
+
+	@Override
+	public final void setVoxelAt(int x, int y, int z, float value) {
+		if (value != 0) {
+			getOrCreateBrick(x, y, z)[getOffsetInBrick(x, y, z)] = value;
+		} else {
+			clearVoxel(x, y, z);
+		}
+	}
+}
@@ -0,0 +1,275 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import toxi.geom.AABB;
+import toxi.geom.Vec3D;
+import toxi.volume.VolumetricSpace;
+
+/**
+ * Alternative to the brush based {@link LatticeRasterizer}, which turns each
+ * lattice edge into a capsule (a cylinder with hemispherical caps) of a
+ * given radius. Instead of repeatedly stamping a box brush along the edge,
+ * the distance of each voxel to the edge's line segment is evaluated
+ * analytically, but only for the voxels within the capsule's bounding box.
+ * The distance is converted into a density which linearly falls off across
+ * the capsule surface: it equals the iso value exactly at the strut radius
+ * and drops from 1 to 0 over a distance of {@link #RAMP_VOXELS} voxels. Since
+ * the iso surface extraction interpolates linearly between voxels, this
+ * produces smooth, round struts which don't require any mesh smoothing.
+ * 
+ * Overlapping capsules are combined by keeping the max. density, so like the
+ * LatticeRasterizer the volume is split into slabs along the X axis which are
+ * processed in parallel without any synchronization.
+ */
+public class CapsuleRasterizer {
+
+	/**
+	 * Width (in voxels) of the density ramp around the strut surface
+	 */
+	public static final float RAMP_VOXELS = 2;
+
+	/**
+	 * Target volume
+	 */
+	private final VolumetricSpace volume;
+
+	/**
+	 * World space coordinates of each voxel row/column/slice
+	 */
+	private final float[] worldX, worldY, worldZ;
+
+	/**
+	 * Scale factors & offsets to map world coordinates into voxel space
+	 */
+	private final float toVoxelX, toVoxelY, toVoxelZ;
+	private final float minX, minY, minZ;
+
+	/**
+	 * Strut radius in world units
+	 */
+	private float radius = 4;
+
+	/**
+	 * Density at the strut surface (should match the iso value used for
+	 * extracting the surface)
+	 */
+	private float isoValue = 0.5f;
+
+	/**
+	 * Density change per world unit
+	 */
+	private final float slope;
+
+	/**
+	 * Creates a new rasterizer for the given volume. Like the
+	 * {@link LatticeRasterizer}, the input bounds are mapped to the voxel
+	 * range 1...res-2 along each axis.
+	 * 
+	 * @param volume
+	 *            target volume
+	 * @param inputBounds
+	 *            world space bounding box
+	 */
+	public CapsuleRasterizer(VolumetricSpace volume, AABB inputBounds) {
+		this.volume = volume;
+		Vec3D min = inputBounds.getMin();
+		Vec3D max = inputBounds.getMax();
+		minX = min.x;
+		minY = min.y;
+		minZ = min.z;
+		toVoxelX = (volume.resX - 3) / (max.x - min.x);
+		toVoxelY = (volume.resY - 3) / (max.y - min.y);
+		toVoxelZ = (volume.resZ - 3) / (max.z - min.z);
+		worldX = computeWorldCoords(volume.resX, minX, toVoxelX);
+		worldY = computeWorldCoords(volume.resY, minY, toVoxelY);
+		worldZ = computeWorldCoords(volume.resZ, minZ, toVoxelZ);
+		// use the largest voxel size, so the ramp spans at least the given
+		// number of voxels along all axes
+		float voxelSize = Math.max(1 / toVoxelX,
+				Math.max(1 / toVoxelY, 1 / toVoxelZ));
+		slope = 1 / (RAMP_VOXELS * voxelSize);
+	}
+
+	private static float[] computeWorldCoords(int res, float min,
+			float toVoxel) {
+		float[] coords = new float[res];
+		for (int i = 0; i < res; i++) {
+			coords[i] = min + (i - 1) / toVoxel;
+		}
+		return coords;
+	}
+
+	/**
+	 * @return index of first voxel with a world coordinate >= p
+	 */
+	private static int ceilVoxel(float p, float min, float toVoxel) {
+		return (int) Math.ceil((p - min) * toVoxel) + 1;
+	}
+
+	/**
+	 * @return index of last voxel with a world coordinate <= p
+	 */
+	private static int floorVoxel(float p, float min, float toVoxel) {
+		return (int) Math.floor((p - min) * toVoxel) + 1;
+	}
+
+	/**
+	 * Computes the density of all voxels within the bounding box of the
+	 * capsule around a single edge, but only updates voxels with an X
+	 * coordinate in the range slabMin...slabMax-1.
+	 */
+	private void drawCapsule(float ax, float ay, float az, float bx,
+			float by, float bz, float reach, int slabMin, int slabMax) {
+		int x1 = Math.max(ceilVoxel(Math.min(ax, bx) - reach, minX, toVoxelX),
+				slabMin);
+		int x2 = Math.min(floorVoxel(Math.max(ax, bx) + reach, minX, toVoxelX),
+				slabMax - 1);
+		if (x1 > x2) {
+			return;
+		}
+		int y1 = Math.max(ceilVoxel(Math.min(ay, by) - reach, minY, toVoxelY),
+				0);
+		int y2 = Math.min(floorVoxel(Math.max(ay, by) + reach, minY, toVoxelY),
+				volume.resY - 1);
+		int z1 = Math.max(ceilVoxel(Math.min(az, bz) - reach, minZ, toVoxelZ),
+				0);
+		int z2 = Math.min(floorVoxel(Math.max(az, bz) + reach, minZ, toVoxelZ),
+				volume.resZ - 1);
+		float dx = bx - ax;
+		float dy = by - ay;
+		float dz = bz - az;
+		float lenSq = dx * dx + dy * dy + dz * dz;
+		float invLenSq = lenSq > 0 ? 1 / lenSq : 0;
+		float reachSq = reach * reach;
+		final int resX = volume.resX;
+		final int sliceRes = volume.sliceRes;
+		for (int z = z1; z <= z2; z++) {
+			float pz = worldZ[z] - az;
+			for (int y = y1; y <= y2; y++) {
+				float py = worldY[y] - ay;
+				int idx = y * resX + z * sliceRes + x1;
+				for (int x = x1; x <= x2; x++, idx++) {
+					float px = worldX[x] - ax;
+					// closest point on segment
+					float t = (px * dx + py * dy + pz * dz) * invLenSq;
+					t = t < 0 ? 0 : (t > 1 ? 1 : t);
+					float qx = px - t * dx;
+					float qy = py - t * dy;
+					float qz = pz - t * dz;
+					float distSq = qx * qx + qy * qy + qz * qz;
+					if (distSq < reachSq) {
+						float density = isoValue
+								+ (radius - (float) Math.sqrt(distSq)) * slope;
+						if (density > 1) {
+							density = 1;
+						}
+						if (density > volume.getVoxelAt(idx)) {
+							volume.setVoxelAt(idx, density);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return strut radius
+	 */
+	public float getRadius() {
+		return radius;
+	}
+
+	/**
+	 * @return target volume
+	 */
+	public VolumetricSpace getVolume() {
+		return volume;
+	}
+
+	/**
+	 * Rasterizes capsules around all edges of the given lattice graph.
+	 * 
+	 * @param lattice
+	 */
+	public void rasterize(final LatticeGraph lattice) {
+		// max. distance from an edge with a non-zero density
+		final float reach = radius + isoValue / slope;
+		int numSlabs = Math.min(ParallelTasks.NUM_THREADS * 2, volume.resX);
+		List<Callable<Void>> slabTasks = new ArrayList<Callable<Void>>(numSlabs);
+		for (int i = 0; i < numSlabs; i++) {
+			final int slabMin = i * volume.resX / numSlabs;
+			final int slabMax = (i + 1) * volume.resX / numSlabs;
+			slabTasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					final float[] x = lattice.x, y = lattice.y, z = lattice.z;
+					final int[] edges = lattice.edges;
+					for (int i = 0; i < lattice.numEdges; i++) {
+						int a = edges[i * 2];
+						int b = edges[i * 2 + 1];
+						drawCapsule(x[a], y[a], z[a], x[b], y[b], z[b], reach,
+								slabMin, slabMax);
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(slabTasks);
+	}
+
+	/**
+	 * Sets the density value at the strut surface. This should match the iso
+	 * value used to extract the surface.
+	 * 
+	 * @param iso
+	 */
+	public void setIsoValue(float iso) {
+		isoValue = iso;
+	}
+
+	/**
+	 * Sets the strut radius (in world units). Should be at least about one
+	 * voxel, otherwise struts might not be fully captured by the voxel grid.
+	 * 
+	 * @param radius
+	 */
+	public void setRadius(float radius) {
+		this.radius = radius;
+	}
+}
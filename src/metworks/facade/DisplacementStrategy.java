@@ -40,6 +40,36 @@ package metworks.facade;
  */
 public interface DisplacementStrategy {
 
+	/**
+	 * Computes the displacement amounts for a batch of points, given as packed
+	 * arrays of coordinates & surface normals. Only the index range
+	 * [from,to) is processed and the results are written into the same range
+	 * of the output array. Implementations must allow this method to be
+	 * called concurrently for disjoint index ranges and should produce the
+	 * same values as {@link #getDisplacementForPoint(FacadePoint)}.
+	 * 
+	 * @param x
+	 *            X coordinates
+	 * @param y
+	 *            Y coordinates
+	 * @param z
+	 *            Z coordinates
+	 * @param nx
+	 *            X components of normals
+	 * @param ny
+	 *            Y components of normals
+	 * @param nz
+	 *            Z components of normals
+	 * @param displacements
+	 *            output array for displacement amounts
+	 * @param from
+	 *            first point index
+	 * @param to
+	 *            end index (exclusive)
+	 */
+	void computeDisplacements(float[] x, float[] y, float[] z, float[] nx,
+			float[] ny, float[] nz, float[] displacements, int from, int to);
+
 	/**
 	 * Applies displacement to single {@link FacadePoint}. This function should
 	 * NOT manipulate to original point given, but create a new Vec3D with the
@@ -0,0 +1,1100 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package metworks.facade;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import toxi.geom.Vec3D;
+import toxi.geom.mesh.Mesh3D;
+import toxi.geom.mesh.TriangleMesh;
+import toxi.volume.IsoSurface;
+import toxi.volume.VolumetricSpace;
+
+/**
+ * Adaptive alternative to {@link ParallelIsoSurface}, based on dual contouring
+ * of an octree (Ju et al., "Dual Contouring of Hermite Data", 2002). Instead
+ * of creating triangles inside each cell, one vertex is placed per cell (at
+ * the minimizer of a quadratic error function built from the surface
+ * crossings & normals on the cell's edges) and a quad is created around each
+ * edge crossing the surface.
+ * 
+ * Cells are organized in an octree, which is built bottom up: empty (i.e.
+ * homogeneous) regions are never subdivided and groups of 8 cells are
+ * collapsed into a single one as long as the combined error stays below
+ * {@link #setMaxError(float)} and the surface topology is preserved (using
+ * the sign tests of the original paper). Flat areas like the sides of the
+ * lattice struts are therefore covered with a few large triangles, which
+ * reduces the number of triangles significantly at high voxel resolutions.
+ * 
+ * Like for {@link ParallelIsoSurface}, empty regions of
+ * {@link BrickedVolumetricSpace}s & {@link MappedVolumetricSpace}s are
+ * skipped without reading any voxels. Subtrees are built in parallel, the
+ * final contouring step runs on the calling thread.
+ * 
+ * Plain dual contouring doesn't produce a 2-manifold mesh for cells in which
+ * the surface consists of several sheets. Such cells are never collapsed and
+ * get a separate vertex for each loop the surface forms on the cell's faces
+ * (similar to Schaefer et al., "Manifold Dual Contouring", 2007), so the
+ * resulting mesh is suitable for STL export.
+ */
+public class DualContouringIsoSurface implements IsoSurface {
+
+	/**
+	 * Default max. error (mean squared distance to the surface planes, in
+	 * voxel units) for collapsing cells
+	 */
+	public static final float DEFAULT_MAX_ERROR = 0.05f;
+
+	/**
+	 * Eigenvalues less than this fraction of the largest one are ignored when
+	 * solving the QEF (which avoids vertices shooting off in flat regions)
+	 */
+	private static final double SVD_THRESHOLD = 0.1;
+
+	/**
+	 * Number of subtrees built per worker thread
+	 */
+	private static final int SUBTREES_PER_THREAD = 4;
+
+	/**
+	 * Corner/child offsets, indexed by x * 4 + y * 2 + z
+	 */
+	private static final int[][] CORNER_OFFSETS = { { 0, 0, 0 }, { 0, 0, 1 },
+			{ 0, 1, 0 }, { 0, 1, 1 }, { 1, 0, 0 }, { 1, 0, 1 }, { 1, 1, 0 },
+			{ 1, 1, 1 } };
+
+	/**
+	 * Corner indices of the 12 cell edges (4 along each axis)
+	 */
+	private static final int[][] EDGE_CORNERS = { { 0, 4 }, { 1, 5 },
+			{ 2, 6 }, { 3, 7 }, { 0, 2 }, { 1, 3 }, { 4, 6 }, { 5, 7 },
+			{ 0, 1 }, { 2, 3 }, { 4, 5 }, { 6, 7 } };
+
+	/**
+	 * Pairs of child cells sharing a face (child a, child b, axis)
+	 */
+	private static final int[][] CELL_FACES = { { 0, 4, 0 }, { 1, 5, 0 },
+			{ 2, 6, 0 }, { 3, 7, 0 }, { 0, 2, 1 }, { 4, 6, 1 }, { 1, 3, 1 },
+			{ 5, 7, 1 }, { 0, 1, 2 }, { 2, 3, 2 }, { 4, 5, 2 }, { 6, 7, 2 } };
+
+	/**
+	 * Quadruples of child cells sharing an edge (4 children, axis)
+	 */
+	private static final int[][] CELL_EDGES = { { 0, 1, 2, 3, 0 },
+			{ 4, 5, 6, 7, 0 }, { 0, 4, 1, 5, 1 }, { 2, 6, 3, 7, 1 },
+			{ 0, 2, 4, 6, 2 }, { 1, 3, 5, 7, 2 } };
+
+	/**
+	 * Child pairs of two cells sharing a face, per face axis
+	 */
+	private static final int[][][] FACE_FACES = {
+			{ { 4, 0, 0 }, { 5, 1, 0 }, { 6, 2, 0 }, { 7, 3, 0 } },
+			{ { 2, 0, 1 }, { 6, 4, 1 }, { 3, 1, 1 }, { 7, 5, 1 } },
+			{ { 1, 0, 2 }, { 3, 2, 2 }, { 5, 4, 2 }, { 7, 6, 2 } } };
+
+	/**
+	 * Child edges of two cells sharing a face, per face axis (order, 4
+	 * children, edge axis)
+	 */
+	private static final int[][][] FACE_EDGES = {
+			{ { 1, 4, 0, 5, 1, 1 }, { 1, 6, 2, 7, 3, 1 },
+					{ 0, 4, 6, 0, 2, 2 }, { 0, 5, 7, 1, 3, 2 } },
+			{ { 0, 2, 3, 0, 1, 0 }, { 0, 6, 7, 4, 5, 0 },
+					{ 1, 2, 0, 6, 4, 2 }, { 1, 3, 1, 7, 5, 2 } },
+			{ { 1, 1, 0, 3, 2, 0 }, { 1, 5, 4, 7, 6, 0 },
+					{ 0, 1, 5, 0, 4, 1 }, { 0, 3, 7, 2, 6, 1 } } };
+
+	/**
+	 * Cell orders used for {@link #FACE_EDGES}
+	 */
+	private static final int[][] FACE_EDGE_ORDERS = { { 0, 0, 1, 1 },
+			{ 0, 1, 0, 1 } };
+
+	/**
+	 * Child edges of four cells sharing an edge, per edge axis (4 children,
+	 * edge axis)
+	 */
+	private static final int[][][] EDGE_EDGES = {
+			{ { 3, 2, 1, 0, 0 }, { 7, 6, 5, 4, 0 } },
+			{ { 5, 1, 4, 0, 1 }, { 7, 3, 6, 2, 1 } },
+			{ { 6, 4, 2, 0, 2 }, { 7, 5, 3, 1, 2 } } };
+
+	/**
+	 * Index of the shared edge within each of the four cells around an edge,
+	 * per edge axis
+	 */
+	private static final int[][] SHARED_EDGES = { { 3, 2, 1, 0 },
+			{ 7, 5, 6, 4 }, { 11, 10, 9, 8 } };
+
+	/**
+	 * Flags for each cell configuration, indicating if its solid & empty
+	 * corners both form a single connected component (i.e. if the surface
+	 * passing through the cell is a single sheet)
+	 */
+	private static final boolean[] IS_MANIFOLD = new boolean[256];
+
+	/**
+	 * Surface loop index of each cell edge (-1 = edge not crossing the
+	 * surface), per cell configuration. Cells with more than one loop get a
+	 * separate vertex per loop.
+	 */
+	private static final int[][] EDGE_LOOPS = new int[256][];
+
+	/**
+	 * Number of surface loops per cell configuration
+	 */
+	private static final int[] NUM_LOOPS = new int[256];
+
+	/**
+	 * Flags of the ambiguous faces (bit index = axis * 2 + side), whose two
+	 * surface segments belong to the same loop, per cell configuration
+	 */
+	private static final int[] SINGLE_LOOP_FACES = new int[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			IS_MANIFOLD[i] = countComponents(i) == 1
+					&& countComponents(~i & 0xff) == 1;
+			EDGE_LOOPS[i] = new int[12];
+			NUM_LOOPS[i] = computeLoops(i, 0, EDGE_LOOPS[i]);
+			for (int face = 0; face < 6; face++) {
+				int[] edges = getCrossingFaceEdges(i, face);
+				if (edges.length == 4
+						&& EDGE_LOOPS[i][edges[0]] == EDGE_LOOPS[i][edges[1]]
+						&& EDGE_LOOPS[i][edges[0]] == EDGE_LOOPS[i][edges[2]]) {
+					SINGLE_LOOP_FACES[i] |= 1 << face;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Groups the crossing edges of the given cell configuration into the
+	 * loops the surface forms on the cell's faces. On each face the crossing
+	 * edges are paired up: if there are 4 (i.e. the solid corners are
+	 * diagonally opposite), the edges sharing a solid corner are paired,
+	 * unless the face is flagged as flipped, in which case the edges sharing
+	 * an empty corner are paired. Since this only depends on the face (see
+	 * {@link OctreeBuilder#getFlippedFaces(int, int, int, int)}),
+	 * neighbouring cells always agree on the pairing, so placing one vertex
+	 * per loop produces a 2-manifold mesh.
+	 * 
+	 * @param corners
+	 *            solid flags of the 8 corners
+	 * @param flippedFaces
+	 *            flags of faces using the opposite pairing
+	 * @param loops
+	 *            array receiving the loop index of each edge
+	 * @return number of loops
+	 */
+	private static int computeLoops(int corners, int flippedFaces, int[] loops) {
+		int[] parent = new int[12];
+		for (int e = 0; e < 12; e++) {
+			parent[e] = isCrossing(corners, e) ? e : -1;
+		}
+		for (int face = 0; face < 6; face++) {
+			int[] edges = getCrossingFaceEdges(corners, face);
+			int pairedSign = ((flippedFaces >> face) & 1) ^ 1;
+			for (int i = 0; i < edges.length; i++) {
+				for (int j = i + 1; j < edges.length; j++) {
+					int shared = getSharedCorner(edges[i], edges[j]);
+					if (edges.length == 2
+							|| (shared != -1 && ((corners >> shared) & 1) == pairedSign)) {
+						parent[findRoot(parent, edges[i])] = findRoot(parent,
+								edges[j]);
+					}
+				}
+			}
+		}
+		int numLoops = 0;
+		int[] rootLoops = new int[12];
+		Arrays.fill(rootLoops, -1);
+		for (int e = 0; e < 12; e++) {
+			if (parent[e] == -1) {
+				loops[e] = -1;
+			} else {
+				int root = findRoot(parent, e);
+				if (rootLoops[root] == -1) {
+					rootLoops[root] = numLoops++;
+				}
+				loops[e] = rootLoops[root];
+			}
+		}
+		return numLoops;
+	}
+
+	/**
+	 * @param corners
+	 *            solid flags of the 8 corners
+	 * @param face
+	 *            face index (axis * 2 + side)
+	 * @return indices of the edges of the given face crossing the surface
+	 */
+	private static int[] getCrossingFaceEdges(int corners, int face) {
+		int axis = face >> 1, side = face & 1;
+		int[] edges = new int[4];
+		int num = 0;
+		for (int e = 0; e < 12; e++) {
+			int[] ec = EDGE_CORNERS[e];
+			if (isCrossing(corners, e) && CORNER_OFFSETS[ec[0]][axis] == side
+					&& CORNER_OFFSETS[ec[1]][axis] == side) {
+				edges[num++] = e;
+			}
+		}
+		return Arrays.copyOf(edges, num);
+	}
+
+	private static boolean isCrossing(int corners, int edge) {
+		int[] ec = EDGE_CORNERS[edge];
+		return ((corners >> ec[0]) & 1) != ((corners >> ec[1]) & 1);
+	}
+
+	private static int findRoot(int[] parent, int e) {
+		while (parent[e] != e) {
+			e = parent[e];
+		}
+		return e;
+	}
+
+	/**
+	 * @return index of the corner shared by both edges (or -1)
+	 */
+	private static int getSharedCorner(int e1, int e2) {
+		for (int c1 : EDGE_CORNERS[e1]) {
+			for (int c2 : EDGE_CORNERS[e2]) {
+				if (c1 == c2) {
+					return c1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts the connected groups of corners flagged in the given bit mask.
+	 */
+	private static int countComponents(int corners) {
+		int num = 0;
+		int visited = 0;
+		for (int i = 0; i < 8; i++) {
+			if ((corners & ~visited & (1 << i)) != 0) {
+				num++;
+				int stack = 1 << i;
+				while (stack != 0) {
+					int c = Integer.numberOfTrailingZeros(stack);
+					stack &= ~(1 << c);
+					visited |= 1 << c;
+					// neighbours differ in a single bit of the corner index
+					for (int axis = 1; axis < 8; axis <<= 1) {
+						int n = c ^ axis;
+						if ((corners & ~visited & (1 << n)) != 0) {
+							stack |= 1 << n;
+						}
+					}
+				}
+			}
+		}
+		return num;
+	}
+
+	/**
+	 * Quadratic error function accumulating the planes given by surface
+	 * crossings & normals. Minimized using the pseudo inverse (via eigen
+	 * decomposition) relative to the mass point of all crossings.
+	 */
+	private static class Qef {
+
+		// upper triangle of A^T A, A^T b & b^T b
+		double a00, a01, a02, a11, a12, a22;
+		double b0, b1, b2, btb;
+		double massX, massY, massZ;
+		int num;
+
+		void add(double px, double py, double pz, double nx, double ny,
+				double nz) {
+			double d = nx * px + ny * py + nz * pz;
+			a00 += nx * nx;
+			a01 += nx * ny;
+			a02 += nx * nz;
+			a11 += ny * ny;
+			a12 += ny * nz;
+			a22 += nz * nz;
+			b0 += nx * d;
+			b1 += ny * d;
+			b2 += nz * d;
+			btb += d * d;
+			massX += px;
+			massY += py;
+			massZ += pz;
+			num++;
+		}
+
+		void add(Qef q) {
+			a00 += q.a00;
+			a01 += q.a01;
+			a02 += q.a02;
+			a11 += q.a11;
+			a12 += q.a12;
+			a22 += q.a22;
+			b0 += q.b0;
+			b1 += q.b1;
+			b2 += q.b2;
+			btb += q.btb;
+			massX += q.massX;
+			massY += q.massY;
+			massZ += q.massZ;
+			num += q.num;
+		}
+
+		/**
+		 * @param x
+		 * @param y
+		 * @param z
+		 * @return error at the given position
+		 */
+		double getError(double x, double y, double z) {
+			double ax = a00 * x + a01 * y + a02 * z;
+			double ay = a01 * x + a11 * y + a12 * z;
+			double az = a02 * x + a12 * y + a22 * z;
+			double err = x * ax + y * ay + z * az - 2 * (x * b0 + y * b1 + z
+					* b2) + btb;
+			return Math.max(err, 0);
+		}
+
+		/**
+		 * Computes the minimizer of the error function.
+		 * 
+		 * @param result
+		 *            array receiving the position
+		 */
+		void solve(double[] result) {
+			double cx = massX / num, cy = massY / num, cz = massZ / num;
+			double[][] a = { { a00, a01, a02 }, { a01, a11, a12 },
+					{ a02, a12, a22 } };
+			// solve relative to the mass point
+			double rx = b0 - (a00 * cx + a01 * cy + a02 * cz);
+			double ry = b1 - (a01 * cx + a11 * cy + a12 * cz);
+			double rz = b2 - (a02 * cx + a12 * cy + a22 * cz);
+			double[][] v = { { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+			diagonalize(a, v);
+			double maxEigen = Math.max(Math.abs(a[0][0]), Math.max(
+					Math.abs(a[1][1]), Math.abs(a[2][2])));
+			result[0] = cx;
+			result[1] = cy;
+			result[2] = cz;
+			for (int i = 0; i < 3; i++) {
+				double e = a[i][i];
+				if (Math.abs(e) > SVD_THRESHOLD * maxEigen) {
+					double d = (v[0][i] * rx + v[1][i] * ry + v[2][i] * rz) / e;
+					result[0] += v[0][i] * d;
+					result[1] += v[1][i] * d;
+					result[2] += v[2][i] * d;
+				}
+			}
+		}
+
+		/**
+		 * Jacobi eigen decomposition of a symmetric 3x3 matrix. Afterwards the
+		 * matrix contains the eigenvalues on its diagonal and the columns of v
+		 * the corresponding eigenvectors.
+		 */
+		private static void diagonalize(double[][] a, double[][] v) {
+			for (int sweep = 0; sweep < 8; sweep++) {
+				for (int p = 0; p < 2; p++) {
+					for (int q = p + 1; q < 3; q++) {
+						double apq = a[p][q];
+						if (Math.abs(apq) < 1e-12) {
+							continue;
+						}
+						double theta = (a[q][q] - a[p][p]) / (2 * apq);
+						double t = (theta >= 0 ? 1 : -1)
+								/ (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+						double c = 1 / Math.sqrt(t * t + 1);
+						double s = t * c;
+						for (int k = 0; k < 3; k++) {
+							double akp = a[k][p], akq = a[k][q];
+							a[k][p] = c * akp - s * akq;
+							a[k][q] = s * akp + c * akq;
+						}
+						for (int k = 0; k < 3; k++) {
+							double apk = a[p][k], aqk = a[q][k];
+							a[p][k] = c * apk - s * aqk;
+							a[q][k] = s * apk + c * aqk;
+						}
+						for (int k = 0; k < 3; k++) {
+							double vkp = v[k][p], vkq = v[k][q];
+							v[k][p] = c * vkp - s * vkq;
+							v[k][q] = s * vkp + c * vkq;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Octree node. Leaves (children == null) carry a vertex, internal nodes
+	 * have up to 8 children (null = empty region).
+	 */
+	private static class Node {
+
+		final int x, y, z, size;
+
+		/**
+		 * Solid flags of the 8 corners (bit index = corner index)
+		 */
+		int corners;
+
+		Node[] children;
+
+		/**
+		 * Error function of a leaf, only kept until its parent has been
+		 * created
+		 */
+		Qef qef;
+
+		Vec3D vertex;
+
+		/**
+		 * Vertex of each cell edge, only used by leaves which contain more
+		 * than one surface loop (else null)
+		 */
+		Vec3D[] edgeVertices;
+
+		Node(int x, int y, int z, int size) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.size = size;
+		}
+
+		final boolean isLeaf() {
+			return children == null;
+		}
+
+		/**
+		 * @param edge
+		 *            cell edge index
+		 * @return vertex of the surface loop passing through the given edge
+		 */
+		final Vec3D getVertex(int edge) {
+			return edgeVertices != null ? edgeVertices[edge] : vertex;
+		}
+	}
+
+	/**
+	 * Builds the octree for a single iso value.
+	 */
+	private class OctreeBuilder {
+
+		private final float iso;
+
+		private final double[] solution = new double[3];
+
+		OctreeBuilder(float iso) {
+			this.iso = iso;
+		}
+
+		/**
+		 * Recursively builds the subtree for the given region.
+		 * 
+		 * @return node or null, if the region doesn't contain any surface
+		 */
+		Node build(int x, int y, int z, int size) {
+			if (isEmptyRegion(x, y, z, size)) {
+				return null;
+			}
+			if (size == 1) {
+				return createLeaf(x, y, z);
+			}
+			int half = size >> 1;
+			Node[] children = new Node[8];
+			boolean hasChildren = false;
+			for (int i = 0; i < 8; i++) {
+				int[] o = CORNER_OFFSETS[i];
+				children[i] = build(x + o[0] * half, y + o[1] * half, z + o[2]
+						* half, half);
+				hasChildren |= children[i] != null;
+			}
+			return hasChildren ? createParent(x, y, z, size, children) : null;
+		}
+
+		/**
+		 * Builds the top levels of the tree above the given (already built)
+		 * subtrees.
+		 * 
+		 * @param subtrees
+		 *            subtrees of the given size, indexed by x + (y + z *
+		 *            num) * num
+		 * @param num
+		 *            number of subtrees along each axis
+		 * @param subtreeSize
+		 */
+		Node buildTop(int x, int y, int z, int size, Node[] subtrees, int num,
+				int subtreeSize) {
+			if (size == subtreeSize) {
+				int i = x / subtreeSize;
+				i += (y / subtreeSize + z / subtreeSize * num) * num;
+				return subtrees[i];
+			}
+			int half = size >> 1;
+			Node[] children = new Node[8];
+			boolean hasChildren = false;
+			for (int i = 0; i < 8; i++) {
+				int[] o = CORNER_OFFSETS[i];
+				children[i] = buildTop(x + o[0] * half, y + o[1] * half, z
+						+ o[2] * half, half, subtrees, num, subtreeSize);
+				hasChildren |= children[i] != null;
+			}
+			return hasChildren ? createParent(x, y, z, size, children) : null;
+		}
+
+		private int computeCorners(int x, int y, int z, int size) {
+			int corners = 0;
+			for (int i = 0; i < 8; i++) {
+				int[] o = CORNER_OFFSETS[i];
+				if (getVoxel(x + o[0] * size, y + o[1] * size, z + o[2] * size) >= iso) {
+					corners |= 1 << i;
+				}
+			}
+			return corners;
+		}
+
+		/**
+		 * Creates a leaf for a single voxel cell, if it intersects the surface.
+		 * Cells containing more than one surface loop (which are never
+		 * collapsed) get a separate vertex per loop.
+		 */
+		private Node createLeaf(int x, int y, int z) {
+			int corners = computeCorners(x, y, z, 1);
+			if (corners == 0 || corners == 0xff) {
+				return null;
+			}
+			Node node = new Node(x, y, z, 1);
+			node.corners = corners;
+			int[] loops = EDGE_LOOPS[corners];
+			int numLoops = NUM_LOOPS[corners];
+			int flippedFaces = getFlippedFaces(x, y, z, corners);
+			if (flippedFaces != 0) {
+				loops = new int[12];
+				numLoops = computeLoops(corners, flippedFaces, loops);
+			}
+			Qef[] qefs = new Qef[numLoops];
+			for (int i = 0; i < qefs.length; i++) {
+				qefs[i] = new Qef();
+			}
+			for (int e = 0; e < 12; e++) {
+				if (loops[e] == -1) {
+					continue;
+				}
+				int[] o1 = CORNER_OFFSETS[EDGE_CORNERS[e][0]];
+				int[] o2 = CORNER_OFFSETS[EDGE_CORNERS[e][1]];
+				int x1 = x + o1[0], y1 = y + o1[1], z1 = z + o1[2];
+				int x2 = x + o2[0], y2 = y + o2[1], z2 = z + o2[2];
+				float v1 = getVoxel(x1, y1, z1);
+				double t = (iso - v1) / (getVoxel(x2, y2, z2) - v1);
+				// interpolate the field gradients of both edge ends
+				double nx = lerp(getGradient(x1, y1, z1, 0),
+						getGradient(x2, y2, z2, 0), t);
+				double ny = lerp(getGradient(x1, y1, z1, 1),
+						getGradient(x2, y2, z2, 1), t);
+				double nz = lerp(getGradient(x1, y1, z1, 2),
+						getGradient(x2, y2, z2, 2), t);
+				double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (len > 0) {
+					nx /= len;
+					ny /= len;
+					nz /= len;
+				} else {
+					// no gradient information, use edge direction
+					nx = x2 - x1;
+					ny = y2 - y1;
+					nz = z2 - z1;
+				}
+				qefs[loops[e]].add(x1 + (x2 - x1) * t, y1 + (y2 - y1) * t, z1
+						+ (z2 - z1) * t, nx, ny, nz);
+			}
+			if (qefs.length == 1) {
+				node.qef = qefs[0];
+				placeVertex(node, node.qef);
+			} else {
+				Vec3D[] vertices = new Vec3D[qefs.length];
+				for (int i = 0; i < qefs.length; i++) {
+					placeVertex(node, qefs[i]);
+					vertices[i] = node.vertex;
+				}
+				node.edgeVertices = new Vec3D[12];
+				for (int e = 0; e < 12; e++) {
+					if (loops[e] != -1) {
+						node.edgeVertices[e] = vertices[loops[e]];
+					}
+				}
+			}
+			return node;
+		}
+
+		/**
+		 * Finds the ambiguous faces of the given cell, whose two surface
+		 * segments belong to the same loop in both this cell and the
+		 * neighbouring one. If neither cell used a separate vertex for each
+		 * segment, the quads of both segments would share an edge, so these
+		 * faces use the opposite pairing (see
+		 * {@link DualContouringIsoSurface#computeLoops(int, int, int[])}).
+		 * 
+		 * @return flags of faces to flip
+		 */
+		private int getFlippedFaces(int x, int y, int z, int corners) {
+			int flipped = 0;
+			int faces = SINGLE_LOOP_FACES[corners];
+			for (int face = 0; faces != 0; face++, faces >>= 1) {
+				if ((faces & 1) != 0) {
+					int axis = face >> 1, dir = (face & 1) * 2 - 1;
+					int n = computeCorners(x + (axis == 0 ? dir : 0), y
+							+ (axis == 1 ? dir : 0), z + (axis == 2 ? dir : 0),
+							1);
+					// same face as seen from the neighbour
+					if ((SINGLE_LOOP_FACES[n] & (1 << (face ^ 1))) != 0) {
+						flipped |= 1 << face;
+					}
+				}
+			}
+			return flipped;
+		}
+
+		/**
+		 * Creates an internal node for the given children or collapses them
+		 * into a single leaf, if possible.
+		 */
+		private Node createParent(int x, int y, int z, int size,
+				Node[] children) {
+			Node node = new Node(x, y, z, size);
+			Qef qef = new Qef();
+			boolean isCollapsible = true;
+			for (Node c : children) {
+				if (c != null) {
+					if (c.isLeaf() && c.qef != null
+							&& IS_MANIFOLD[c.corners]) {
+						qef.add(c.qef);
+					} else {
+						isCollapsible = false;
+					}
+				}
+			}
+			if (isCollapsible) {
+				node.corners = computeCorners(x, y, z, size);
+				if (IS_MANIFOLD[node.corners]
+						&& isTopologySafe(x, y, z, size >> 1)
+						&& placeVertex(node, qef) <= maxError) {
+					node.qef = qef;
+					return node;
+				}
+			}
+			node.children = children;
+			for (Node c : children) {
+				if (c != null) {
+					c.qef = null;
+				}
+			}
+			return node;
+		}
+
+		/**
+		 * Checks the signs of the edge midpoints, face centres and the centre of
+		 * the given cell. Each must match at least one of the cell corners
+		 * closest to it, else collapsing the cell would change the topology
+		 * of the surface.
+		 */
+		private boolean isTopologySafe(int x, int y, int z, int half) {
+			for (int i = 0; i < 27; i++) {
+				int ix = i / 9, iy = (i / 3) % 3, iz = i % 3;
+				if (ix != 1 && iy != 1 && iz != 1) {
+					// cell corner
+					continue;
+				}
+				boolean isSolid = getVoxel(x + ix * half, y + iy * half, z
+						+ iz * half) >= iso;
+				boolean isMatched = false;
+				for (int c = 0; c < 8 && !isMatched; c++) {
+					int[] o = CORNER_OFFSETS[c];
+					// only corners which can be reached by replacing the
+					// point's mid coordinates
+					if ((ix == 1 || ix == o[0] * 2)
+							&& (iy == 1 || iy == o[1] * 2)
+							&& (iz == 1 || iz == o[2] * 2)) {
+						isMatched = (getVoxel(x + o[0] * 2 * half, y + o[1] * 2
+								* half, z + o[2] * 2 * half) >= iso) == isSolid;
+					}
+				}
+				if (!isMatched) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Computes the vertex of the given node by minimizing the QEF. If the
+		 * minimizer lies outside the cell, the mass point is used instead.
+		 * 
+		 * @return mean squared distance of the vertex to the surface planes
+		 */
+		private double placeVertex(Node node, Qef qef) {
+			double[] p = solution;
+			qef.solve(p);
+			if (p[0] < node.x || p[0] > node.x + node.size || p[1] < node.y
+					|| p[1] > node.y + node.size || p[2] < node.z
+					|| p[2] > node.z + node.size) {
+				p[0] = qef.massX / qef.num;
+				p[1] = qef.massY / qef.num;
+				p[2] = qef.massZ / qef.num;
+			}
+			node.vertex = new Vec3D((float) (p[0] * cellSize.x + centreOffset.x),
+					(float) (p[1] * cellSize.y + centreOffset.y),
+					(float) (p[2] * cellSize.z + centreOffset.z));
+			return qef.getError(p[0], p[1], p[2]) / qef.num;
+		}
+
+		/**
+		 * @return central difference of the field along the given axis
+		 */
+		private float getGradient(int x, int y, int z, int axis) {
+			int dx = axis == 0 ? 1 : 0;
+			int dy = axis == 1 ? 1 : 0;
+			int dz = axis == 2 ? 1 : 0;
+			return (getVoxel(x + dx, y + dy, z + dz) - getVoxel(x - dx, y - dy,
+					z - dz)) * 0.5f;
+		}
+	}
+
+	private static double lerp(double a, double b, double t) {
+		return a + (b - a) * t;
+	}
+
+	protected final VolumetricSpace volume;
+
+	/**
+	 * Same as volume, if it's a bricked volume (else null). Used to skip
+	 * unallocated (empty) bricks.
+	 */
+	private final BrickedVolumetricSpace bricks;
+
+	/**
+	 * Same as volume, if it's a mapped volume (else null). Used to skip empty
+	 * slices.
+	 */
+	private final MappedVolumetricSpace mapped;
+
+	protected final Vec3D cellSize;
+	protected final Vec3D centreOffset;
+
+	private float maxError = DEFAULT_MAX_ERROR;
+
+	public DualContouringIsoSurface(VolumetricSpace volume) {
+		this.volume = volume;
+		this.bricks = volume instanceof BrickedVolumetricSpace ? (BrickedVolumetricSpace) volume
+				: null;
+		this.mapped = volume instanceof MappedVolumetricSpace ? (MappedVolumetricSpace) volume
+				: null;
+		cellSize = new Vec3D(volume.scale.x / volume.resX1, volume.scale.y
+				/ volume.resY1, volume.scale.z / volume.resZ1);
+		centreOffset = volume.halfScale.getInverted();
+	}
+
+	/**
+	 * Computes the iso surface for the given value and passes all triangles
+	 * to the given consumer. The consumer is only called from the current
+	 * thread.
+	 * 
+	 * @param iso
+	 *            iso value
+	 * @param consumer
+	 *            triangle receiver
+	 */
+	public void computeSurface(float iso, TriangleConsumer consumer) {
+		contourCell(buildOctree(iso), consumer);
+	}
+
+	/**
+	 * Computes the surface mesh for the given iso value. If the given mesh is
+	 * null a new one is created, else the existing mesh is cleared first.
+	 */
+	@Override
+	public Mesh3D computeSurfaceMesh(Mesh3D mesh, float iso) {
+		if (mesh == null) {
+			mesh = new TriangleMesh("isosurface-" + iso);
+		} else {
+			mesh.clear();
+		}
+		final Mesh3D target = mesh;
+		computeSurface(iso, new TriangleConsumer() {
+
+			@Override
+			public void addTriangle(Vec3D a, Vec3D b, Vec3D c) {
+				target.addFace(a, b, c);
+			}
+		});
+		return mesh;
+	}
+
+	/**
+	 * Builds the octree for the given iso value. The volume is split into
+	 * subtrees, which are built in parallel and then joined on the calling
+	 * thread.
+	 * 
+	 * @param iso
+	 * @return root node (or null, if the volume doesn't contain any surface)
+	 */
+	private Node buildOctree(float iso) {
+		int numCells = Math.max(volume.resX1, Math.max(volume.resY1,
+				volume.resZ1));
+		int rootSize = Integer.highestOneBit(Math.max(numCells, 1));
+		if (rootSize < numCells) {
+			rootSize <<= 1;
+		}
+		// split into enough subtrees to keep all threads busy
+		int num = 1;
+		while (num * num * num < ParallelTasks.NUM_THREADS
+				* SUBTREES_PER_THREAD
+				&& num < rootSize) {
+			num <<= 1;
+		}
+		final int subtreeSize = rootSize / num;
+		List<Callable<Node>> tasks = new ArrayList<Callable<Node>>();
+		for (int z = 0; z < num; z++) {
+			for (int y = 0; y < num; y++) {
+				for (int x = 0; x < num; x++) {
+					final int minX = x * subtreeSize;
+					final int minY = y * subtreeSize;
+					final int minZ = z * subtreeSize;
+					final OctreeBuilder builder = new OctreeBuilder(iso);
+					tasks.add(new Callable<Node>() {
+
+						@Override
+						public Node call() {
+							return builder.build(minX, minY, minZ, subtreeSize);
+						}
+					});
+				}
+			}
+		}
+		List<Node> results = ParallelTasks.invokeAll(tasks);
+		Node[] subtrees = results.toArray(new Node[results.size()]);
+		return new OctreeBuilder(iso).buildTop(0, 0, 0, rootSize, subtrees,
+				num, subtreeSize);
+	}
+
+	/**
+	 * @return voxel value at the given position (zero outside the volume)
+	 */
+	private float getVoxel(int x, int y, int z) {
+		if (x < 0 || y < 0 || z < 0 || x >= volume.resX || y >= volume.resY
+				|| z >= volume.resZ) {
+			return 0;
+		}
+		if (bricks != null) {
+			return bricks.getVoxelAt(x, y, z);
+		}
+		if (mapped != null) {
+			return mapped.getVoxelAt(x, y, z);
+		}
+		return volume.getVoxelAt(volume.getIndexFor(x, y, z));
+	}
+
+	/**
+	 * Checks if the given region is known to be empty without reading any
+	 * voxels (i.e. it's outside the volume or only touches unallocated
+	 * bricks/slices).
+	 */
+	private boolean isEmptyRegion(int x, int y, int z, int size) {
+		if (x >= volume.resX1 || y >= volume.resY1 || z >= volume.resZ1) {
+			return true;
+		}
+		int maxZ = Math.min(z + size, volume.resZ1);
+		if (mapped != null) {
+			for (int i = z; i <= maxZ; i++) {
+				if (mapped.isSliceOccupied(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (bricks != null) {
+			final int bits = BrickedVolumetricSpace.BRICK_BITS;
+			int maxX = Math.min(x + size, volume.resX1) >> bits;
+			int maxY = Math.min(y + size, volume.resY1) >> bits;
+			maxZ >>= bits;
+			for (int bz = z >> bits; bz <= maxZ; bz++) {
+				for (int by = y >> bits; by <= maxY; by++) {
+					for (int bx = x >> bits; bx <= maxX; bx++) {
+						if (bricks.isBrickAllocated(bx, by, bz)) {
+							return false;
+						}
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return max. error for collapsing cells
+	 */
+	public float getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * Sets the max. error (mean squared distance of a cell vertex to the
+	 * surface planes of all edge crossings, in voxel units) up to which cells
+	 * are collapsed. Use 0 to only collapse (almost) perfectly flat regions.
+	 * 
+	 * @param maxError
+	 */
+	public void setMaxError(float maxError) {
+		this.maxError = maxError;
+	}
+
+	/**
+	 * This implementation doesn't keep any state between calls to
+	 * {@link #computeSurfaceMesh(Mesh3D, float)}, so this method does nothing.
+	 */
+	@Override
+	public void reset() {
+	}
+
+	private void contourCell(Node node, TriangleConsumer consumer) {
+		if (node == null || node.isLeaf()) {
+			return;
+		}
+		Node[] c = node.children;
+		for (int i = 0; i < 8; i++) {
+			contourCell(c[i], consumer);
+		}
+		for (int[] face : CELL_FACES) {
+			contourFace(c[face[0]], c[face[1]], face[2], consumer);
+		}
+		for (int[] edge : CELL_EDGES) {
+			contourEdge(c[edge[0]], c[edge[1]], c[edge[2]], c[edge[3]],
+					edge[4], consumer);
+		}
+	}
+
+	private void contourFace(Node a, Node b, int axis,
+			TriangleConsumer consumer) {
+		if (a == null || b == null || (a.isLeaf() && b.isLeaf())) {
+			return;
+		}
+		for (int[] f : FACE_FACES[axis]) {
+			contourFace(getChild(a, f[0]), getChild(b, f[1]), f[2], consumer);
+		}
+		Node[] nodes = { a, b };
+		for (int[] e : FACE_EDGES[axis]) {
+			int[] order = FACE_EDGE_ORDERS[e[0]];
+			contourEdge(getChild(nodes[order[0]], e[1]),
+					getChild(nodes[order[1]], e[2]),
+					getChild(nodes[order[2]], e[3]),
+					getChild(nodes[order[3]], e[4]), e[5], consumer);
+		}
+	}
+
+	private void contourEdge(Node a, Node b, Node c, Node d, int axis,
+			TriangleConsumer consumer) {
+		if (a == null || b == null || c == null || d == null) {
+			return;
+		}
+		if (a.isLeaf() && b.isLeaf() && c.isLeaf() && d.isLeaf()) {
+			emitQuad(a, b, c, d, axis, consumer);
+			return;
+		}
+		for (int[] e : EDGE_EDGES[axis]) {
+			contourEdge(getChild(a, e[0]), getChild(b, e[1]),
+					getChild(c, e[2]), getChild(d, e[3]), e[4], consumer);
+		}
+	}
+
+	/**
+	 * Creates the quad (as 2 triangles) connecting the vertices of the four
+	 * leaves around an edge, if the edge crosses the surface. The sign change
+	 * is checked on the smallest leaf, since its edge is the minimal one.
+	 */
+	private void emitQuad(Node a, Node b, Node c, Node d, int axis,
+			TriangleConsumer consumer) {
+		Node[] nodes = { a, b, c, d };
+		int minIndex = 0;
+		for (int i = 1; i < 4; i++) {
+			if (nodes[i].size < nodes[minIndex].size) {
+				minIndex = i;
+			}
+		}
+		int[] edge = EDGE_CORNERS[SHARED_EDGES[axis][minIndex]];
+		int corners = nodes[minIndex].corners;
+		int s1 = (corners >> edge[0]) & 1;
+		int s2 = (corners >> edge[1]) & 1;
+		if (s1 == s2) {
+			return;
+		}
+		// pick the vertex of the surface loop passing through the edge
+		int[] shared = SHARED_EDGES[axis];
+		Vec3D va = a.getVertex(shared[0]);
+		Vec3D vb = b.getVertex(shared[1]);
+		Vec3D vc = c.getVertex(shared[2]);
+		Vec3D vd = d.getVertex(shared[3]);
+		if (s1 != 0) {
+			emitTriangle(va, vb, vd, consumer);
+			emitTriangle(va, vd, vc, consumer);
+		} else {
+			emitTriangle(va, vd, vb, consumer);
+			emitTriangle(va, vc, vd, consumer);
+		}
+	}
+
+	/**
+	 * Passes on the triangle, unless it's degenerate (which happens where
+	 * leaves of different sizes meet).
+	 */
+	private static void emitTriangle(Vec3D a, Vec3D b, Vec3D c,
+			TriangleConsumer consumer) {
+		if (a != b && b != c && a != c) {
+			consumer.addTriangle(a, b, c);
+		}
+	}
+
+	private static Node getChild(Node node, int i) {
+		return node.isLeaf() ? node : node.children[i];
+	}
+}
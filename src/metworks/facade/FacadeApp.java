@@ -34,39 +34,25 @@ package metworks.facade;
 
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
 
+import metworks.facade.FacadePipeline.Stage;
 import processing.core.PApplet;
-import toxi.geom.AABB;
-import toxi.geom.Line3D;
-import toxi.geom.LineStrip2D;
-import toxi.geom.LineStrip3D;
 import toxi.geom.Polygon2D;
-import toxi.geom.PolygonClipper2D;
 import toxi.geom.Rect;
-import toxi.geom.SutherlandHodgemanClipper;
-import toxi.geom.Triangle2D;
 import toxi.geom.Vec2D;
-import toxi.geom.Vec3D;
-import toxi.geom.mesh.LaplacianSmooth;
 import toxi.geom.mesh.WETriangleMesh;
-import toxi.geom.mesh2d.Voronoi;
 import toxi.math.MathUtils;
 import toxi.processing.ToxiclibsSupport;
 import toxi.util.DateUtils;
-import toxi.util.datatypes.FloatRange;
-import toxi.volume.BoxBrush;
-import toxi.volume.HashIsoSurface;
-import toxi.volume.MeshLatticeBuilder;
-import toxi.volume.VolumetricBrush;
-import toxi.volume.VolumetricSpace;
 import controlP5.Button;
 import controlP5.ControlEvent;
 import controlP5.ControlListener;
 import controlP5.ControlP5;
 import controlP5.RadioButton;
 import controlP5.Slider;
+import controlP5.Textarea;
+import controlP5.Textlabel;
 import controlP5.Toggle;
 
 public class FacadeApp extends PApplet {
@@ -109,55 +95,58 @@ public class FacadeApp extends PApplet {
 	private SplineEditor splineEditor;
 
 	/**
-	 * particles are connected into triangles and then clipped to a bounding
-	 * rectangle. this list stores the clipped 2D version of these resulting
-	 * shapes
+	 * surface displacement instance applied to each vertex of every splineShape
+	 * entry
 	 */
-	private List<Polygon2D> clippedPolies;
+	private DisplacementStrategy displacement;
 
 	/**
-	 * since there's no direct 3D counterpart for Polygon2D, we're using
-	 * LineStrip3D's to recreate the polygons in 3D space
+	 * top-left corner of 2d facade layout on screen
 	 */
-	private List<LineStrip3D> splineShapes;
+	private Vec2D offset2d;
 
 	/**
-	 * this list is a duplicate of splineShapes with added surface displacement
-	 * (user controllable)
+	 * geometry pipeline producing the clipped shapes, 3D outlines and iso
+	 * surface mesh from the particle system & spline
 	 */
-	private List<LineStrip3D> displacedShapes;
+	private FacadePipeline pipeline;
 
 	/**
-	 * surface displacement instance applied to each vertex of every splineShape
-	 * entry
+	 * builds the iso surface mesh in the background (progressively, starting
+	 * with low-res previews) so that voxel resolution changes don't block the UI
 	 */
-	private DisplacementStrategy displacement;
+	private BackgroundMeshBuilder meshBuilder;
 
 	/**
-	 * top-left corner of 2d facade layout on screen
+	 * writes STL files in the background so that decimation & full resolution
+	 * voxelization don't block the UI
 	 */
-	private Vec2D offset2d;
+	private BackgroundExporter exporter;
 
 	/**
-	 * 3D bounding box of all shapes in displacedShapes this box is needed to
-	 * correctly compute the iso surface mesh. AABB = axis aligned bounding box.
+	 * draw mode selector/state: 0 = 2d, 1 = 3d outlines, 2 = 3d iso mesh
 	 */
-	private AABB bounds3D;
+	private int drawMode;
 
 	/**
-	 * mesh instance to hold iso surface
+	 * per-stage timing & allocation metrics of the most recent frames
 	 */
-	private WETriangleMesh mesh;
+	private StageMetrics metrics;
 
 	/**
-	 * volumetric grid resolution (mapped to GUI slider in 3D mesh mode)
+	 * timers for the entire frame, physics & spline editor
 	 */
-	private int voxelRes = 128;
+	private StageMetrics.Timer frameTimer, physicsTimer, splineEditorTimer;
 
 	/**
-	 * draw mode selector/state: 0 = 2d, 1 = 3d outlines, 2 = 3d iso mesh
+	 * timers for each draw mode (indexed by drawMode)
 	 */
-	private int drawMode;
+	private StageMetrics.Timer[] drawTimers;
+
+	/**
+	 * number of frames between updates of the metrics overlay
+	 */
+	private static final int METRICS_UPDATE_INTERVAL = 15;
 
 	/**
 	 * 3D zoom settings (1.0 = 100%)
@@ -182,11 +171,46 @@ public class FacadeApp extends PApplet {
 	 */
 	private Slider voxelSlider;
 
+	/**
+	 * UI element: only shown in 3D mesh mode to control the radius of the
+	 * capsule shaped struts (0 = default brush voxelization)
+	 */
+	private Slider strutSlider;
+
+	/**
+	 * UI element: only shown in 3D mesh mode to switch between marching cubes
+	 * & adaptive dual contouring
+	 */
+	private Toggle btDualContouring;
+
+	/**
+	 * UI element: only shown in 3D mesh mode to choose the percentage of
+	 * faces removed by decimation when exporting STL files
+	 */
+	private Slider decimateSlider;
+
 	/**
 	 * UI element: only shown in 3D mesh mode to trigger export of STL file
 	 */
 	private Button btExportSTL;
 
+	/**
+	 * UI element: only shown in 3D mesh mode to stream the unsmoothed iso
+	 * surface directly into an STL file (without building a mesh)
+	 */
+	private Button btStreamSTL;
+
+	/**
+	 * UI element: only shown in 3D mesh mode to report the progress/outcome of
+	 * STL exports
+	 */
+	private Textlabel exportStatus;
+
+	/**
+	 * export status currently shown by {@link #exportStatus}
+	 */
+	private String shownExportStatus = "";
+
 	/**
 	 * UI element: only shown when spline editor is visible to reset curve
 	 */
@@ -197,6 +221,12 @@ public class FacadeApp extends PApplet {
 	 */
 	private RadioButton btDrawMode;
 
+	/**
+	 * UI element: only shown when enabled via {@link #showMetrics} to display
+	 * rolling per-stage metrics
+	 */
+	private Textarea metricsOverlay;
+
 	/**
 	 * trigger flag to indicate that particles should be connected to form
 	 * shapes
@@ -215,138 +245,13 @@ public class FacadeApp extends PApplet {
 	public boolean isShiftDown;
 
 	/**
-	 * Computes 2D Voronoi or Delaunay triangulation from the current particle
-	 * positions. The resulting shapes are then clipped to the particle system's
-	 * bounding rect and stored in clippedPolies list.
+	 * switch to show the metrics overlay
 	 */
-	public void computeClippedShapes() {
-		// Computing the voronoi also requires the Delaunay triangulation
-		Voronoi voronoi = new Voronoi();
-		for (Vec2D p : particleSys.getPhysics().particles) {
-			voronoi.addPoint(p);
-		}
-		// also add points along the bounding rect edges
-		List<Vec2D> boundingPoints = new LineStrip2D(particleSys.getBounds()
-				.toPolygon2D().scale(1.05f).vertices).getDecimatedVertices(50);
-		for (Vec2D p : boundingPoints) {
-			voronoi.addPoint(p);
-		}
-
-		clippedPolies = new ArrayList<Polygon2D>();
-		// setup a polygon clipper to constrain polygons to the bounding
-		// rectangle of the particle system
-		PolygonClipper2D clipper = new SutherlandHodgemanClipper(
-				particleSys.getBounds());
-		if (doUseVoronoi) {
-			for (Polygon2D p : voronoi.getRegions()) {
-				p = clipper.clipPolygon(p);
-				// only accept polygon if it still has at least 3 vertices
-				if (p.getNumVertices() >= 3) {
-					clippedPolies.add(p);
-				}
-			}
-		} else {
-			for (Triangle2D t : voronoi.getTriangles()) {
-				Polygon2D p = clipper.clipPolygon(t.toPolygon2D());
-				// only accept polygon if it still has at least 3 vertices
-				if (p.getNumVertices() >= 3) {
-					clippedPolies.add(p);
-				}
-			}
-		}
-	}
-
-	/**
-	 * Duplicates the contents of splineShapes list and applies surface
-	 * displacement to each vertex. During that process it also updates the 3D
-	 * bounding box enclosing all displaced vertices.
-	 */
-	public void computeDisplacedShapes() {
-		displacedShapes = new ArrayList<LineStrip3D>();
-		// define an initially empty bounding box
-		bounds3D = new AABB();
-		// iterate over all shapes
-		for (LineStrip3D shape : splineShapes) {
-			// create empty container for the shape's displaced clone
-			LineStrip3D displacedShape = new LineStrip3D();
-			// iterate over all vertices in the current shape
-			for (Vec3D v : shape) {
-				// we actually store FacadePoint instances, but need to cast
-				// them manually (and FacadePoint class inherits from Vec3D)
-				FacadePoint p = (FacadePoint) v;
-				// use the DisplacementStrategy to compute the displacement
-				// amount for the current vertex/point
-				float amp = displacement.getDisplacementForPoint(p);
-				// now get the actual displaced point
-				Vec3D displaced = p.getDisplaced(amp);
-				// and add it to the new vertex list
-				displacedShape.add(displaced);
-				// update bounding box
-				bounds3D.growToContainPoint(displaced);
-			}
-			// add displaced shape to list
-			displacedShapes.add(displacedShape);
-		}
-	}
-
-	/**
-	 * Maps all shapes in the {@link #clippedPolies} list onto the 3D profile of
-	 * the current spline. Uses the relative X coordinate of the 2D shape
-	 * vertices as metric to a related position on the curve and then constructs
-	 * the surface in the XY plane.
-	 */
-	public void computePointsOnSpline() {
-		splineShapes = new ArrayList<LineStrip3D>();
-		// get a fairly highres & uniformly sampled list of point on the curve
-		List<Vec2D> strip = splineEditor.getSpline().toLineStrip2D(20)
-				.getDecimatedVertices(1);
-		// take a note of their number
-		int stripSize = strip.size() - 1;
-		// get the strip's centroid
-		Vec2D centroid = Rect.getBoundingRect(strip).getCentroid();
-		// iterate over all shapes
-		for (Polygon2D p : clippedPolies) {
-			LineStrip3D s = new LineStrip3D();
-			// ..over all vertices in the current shape
-			for (Vec2D v : p) {
-				// compute relative (normalized) 2D position
-				// e.g. if a point was in the top left corner of the particle
-				// system it's relPos = {0.0, 0.0}
-				// point in bottom-right corner would have relPos = {1.0, 1.0}
-				Vec2D relPos = v.scale(particleSys.getBounds().getDimensions()
-						.getReciprocal());
-				// use relative X position to map to point on curve
-				int stripIndex = (int) (relPos.x * stripSize);
-				// get point on curve
-				Vec2D pointOnCurve = strip.get(stripIndex);
-				// get prev point on curve
-				Vec2D prevPointOnCurve = strip.get(max(stripIndex - 1, 0));
-				// compute tangent
-				Vec2D tangent = pointOnCurve.sub(prevPointOnCurve)
-						.perpendicular().normalize();
-				// transfer 2D tangent into 3D XZ plane
-				// the swizzling of coordinates is needed here because the
-				// spline itself has a generally vertical orientation (whereas
-				// the particle system is more horizontal)
-				Vec3D normal = new Vec3D(tangent.y, 0, tangent.x);
-				// center 2D curve point around 0,0
-				Vec2D t = pointOnCurve.sub(centroid);
-				// construct a FacadePoint from to bundle the various metrics
-				Vec3D t3d = new FacadePoint(t.y, v.y
-						- particleSys.getBounds().height / 2, t.x, normal,
-						relPos);
-				// add to 3D shape
-				s.add(t3d);
-			}
-			// (re)add first point to close shape
-			s.add(s.get(0));
-			// add entire shape to list
-			splineShapes.add(s);
-		}
-	}
+	public boolean showMetrics;
 
 	@Override
 	public void draw() {
+		frameTimer.start();
 		background(100);
 		// enable 3D depth testing
 		// also see: http://processing.org/reference/hint_.html
@@ -356,9 +261,13 @@ public class FacadeApp extends PApplet {
 		currZoom = lerp(currZoom, targetZoom, 0.15f);
 
 		// update physics simulation and particle system state
+		physicsTimer.start();
 		particleSys.update();
+		physicsTimer.stop();
 
 		// display system based on current user setting
+		StageMetrics.Timer drawTimer = drawTimers[drawMode];
+		drawTimer.start();
 		switch (drawMode) {
 		case 0:
 			drawShapes2D();
@@ -370,12 +279,26 @@ public class FacadeApp extends PApplet {
 			drawMesh3D();
 			break;
 		}
+		drawTimer.stop();
 
 		// then draw 2D facade curve editor without depth testing
 		// also see: http://processing.org/reference/hint_.html
 		hint(DISABLE_DEPTH_TEST);
 		if (drawMode < 2) {
+			splineEditorTimer.start();
 			splineEditor.draw(gfx);
+			splineEditorTimer.stop();
+		}
+		String status = exporter.getStatus();
+		if (!status.equals(shownExportStatus)) {
+			exportStatus.setValue(status);
+			shownExportStatus = status;
+		}
+		frameTimer.stop();
+		metrics.endFrame();
+		if (showMetrics
+				&& metrics.getFrameCount() % METRICS_UPDATE_INTERVAL == 0) {
+			metricsOverlay.setText(metrics.getSummary());
 		}
 	}
 
@@ -385,6 +308,7 @@ public class FacadeApp extends PApplet {
 	 * afterwards. Checks if mesh != null.
 	 */
 	private void drawMesh3D() {
+		WETriangleMesh mesh = meshBuilder.getMesh();
 		if (mesh != null) {
 			// backup current coordinate system
 			pushMatrix();
@@ -409,9 +333,9 @@ public class FacadeApp extends PApplet {
 	}
 
 	/**
-	 * Applies the current arcball view rotation and draws the contents of
-	 * displacedShapes as outlines (the original 2d shapes mapped on spline
-	 * profile and applied surface deformation).
+	 * Applies the current arcball view rotation and draws the edges of the
+	 * displaced lattice graph as outlines (the original 2d shapes mapped on
+	 * spline profile and applied surface deformation).
 	 */
 	private void drawOutlineShapes3D() {
 		// backup current coordinate system
@@ -427,10 +351,17 @@ public class FacadeApp extends PApplet {
 		// draw major axes of coordinate system
 		gfx.origin(300);
 		// draw all 3d shapes as outlines
+		pushStyle();
 		stroke(255);
-		for (LineStrip3D s : displacedShapes) {
-			gfx.lineStrip3D(s);
+		noFill();
+		LatticeGraph lattice = pipeline.getDisplacedLattice();
+		beginShape(LINES);
+		for (int i = 0; i < lattice.numEdges * 2; i++) {
+			int j = lattice.edges[i];
+			vertex(lattice.x[j], lattice.y[j], lattice.z[j]);
 		}
+		endShape();
+		popStyle();
 		// restore previous coordinate system
 		popMatrix();
 	}
@@ -449,10 +380,11 @@ public class FacadeApp extends PApplet {
 		// check if user enabled shapes (delaunay/voronoi) and if so, show
 		// them...
 		if (doComputeShapes) {
-			computeClippedShapes();
-			if (clippedPolies != null) {
+			pipeline.setUseVoronoi(doUseVoronoi);
+			pipeline.updateClippedShapes();
+			if (pipeline.getClippedShapes() != null) {
 				stroke(0, 255, 255);
-				for (Polygon2D p : clippedPolies) {
+				for (Polygon2D p : pipeline.getClippedShapes()) {
 					gfx.polygon2D(p);
 				}
 			}
@@ -483,6 +415,34 @@ public class FacadeApp extends PApplet {
 		displacement = new NoiseDisplacement();
 	}
 
+	/**
+	 * Initializes the per-stage metrics and attaches them to the geometry
+	 * pipeline & mesh builder. Must be called after {@link #initPipeline()}.
+	 */
+	private void initMetrics() {
+		metrics = new StageMetrics();
+		frameTimer = metrics.getTimer("frame");
+		physicsTimer = metrics.getTimer("particleSys.update");
+		drawTimers = new StageMetrics.Timer[] {
+				metrics.getTimer("drawShapes2D"),
+				metrics.getTimer("drawOutlineShapes3D"),
+				metrics.getTimer("drawMesh3D") };
+		splineEditorTimer = metrics.getTimer("splineEditor.draw");
+		pipeline.setMetrics(metrics);
+		meshBuilder.setMetrics(metrics);
+	}
+
+	/**
+	 * Initializes the geometry pipeline with the particle system, spline and
+	 * surface displacement. Must be called after these have been created.
+	 */
+	private void initPipeline() {
+		pipeline = new FacadePipeline(particleSys, splineEditor.getSpline(),
+				displacement);
+		meshBuilder = new BackgroundMeshBuilder(pipeline);
+		exporter = new BackgroundExporter();
+	}
+
 	/**
 	 * Called from {@link #setup()}. Initializes all user interface elements.
 	 * Makes heavy use of event listeners to dynamically switch between
@@ -534,27 +494,42 @@ public class FacadeApp extends PApplet {
 			public void controlEvent(ControlEvent e) {
 				drawMode = e.controller().id();
 				if (drawMode > 0) {
-					computeClippedShapes();
-					computePointsOnSpline();
-					computeDisplacedShapes();
+					// only recompute outdated stages
+					pipeline.setUseVoronoi(doUseVoronoi);
+					pipeline.update(Stage.DISPLACEMENT);
 					particleSys.deselectAttractor();
 					radiusSlider.hide();
 					if (drawMode == 1) {
 						displaceSlider.show();
 						btResetSpline.show();
 						btExportSTL.hide();
+						btStreamSTL.hide();
+						exportStatus.hide();
 						voxelSlider.hide();
+						strutSlider.hide();
+						btDualContouring.hide();
+						decimateSlider.hide();
 					} else if (drawMode == 2) {
-						voxelizeStructure();
+						meshBuilder.requestMesh();
 						voxelSlider.show();
+						strutSlider.show();
+						btDualContouring.show();
+						decimateSlider.show();
 						btExportSTL.show();
+						btStreamSTL.show();
+						exportStatus.show();
 						btResetSpline.hide();
 						displaceSlider.hide();
 					}
 				} else {
 					displaceSlider.hide();
 					voxelSlider.hide();
+					strutSlider.hide();
+					btDualContouring.hide();
+					decimateSlider.hide();
 					btExportSTL.hide();
+					btStreamSTL.hide();
+					exportStatus.hide();
 					btResetSpline.hide();
 				}
 			}
@@ -571,6 +546,38 @@ public class FacadeApp extends PApplet {
 		r.setId(2);
 		r.addListener(drawModeUpdater);
 
+		Toggle btMetrics = gui.addToggle("showMetrics", 220, 110, 20, 20);
+		btMetrics.setLabel("metrics on/off");
+		btMetrics.addListener(new ControlListener() {
+			@Override
+			public void controlEvent(ControlEvent e) {
+				if (e.controller().value() > 0) {
+					metricsOverlay.setText(metrics.getSummary());
+					metricsOverlay.show();
+				} else {
+					metricsOverlay.hide();
+				}
+			}
+		});
+
+		Button btSaveMetrics = gui.addButton("saveMetrics", 0, 320, 110, 100,
+				20);
+		btSaveMetrics.setLabel("save metrics CSV");
+		btSaveMetrics.addListener(new ControlListener() {
+			@Override
+			public void controlEvent(ControlEvent e) {
+				try {
+					metrics.saveAsCSV(sketchPath("metrics-"
+							+ DateUtils.timeStamp() + ".csv"));
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		});
+
+		metricsOverlay = gui.addTextarea("metrics", "", 20, 250, 420, 200);
+		metricsOverlay.hide();
+
 		gui.addSlider("setDrag", 0.0f, 0.1f, particleSys.getDrag(), 220, 20,
 				100, 20).setLabel("drag");
 
@@ -584,6 +591,15 @@ public class FacadeApp extends PApplet {
 			}
 		});
 
+		Toggle btParallel = gui.addToggle("parallelPhysics", 220, 80, 20, 20);
+		btParallel.setLabel("multi-threaded physics");
+		btParallel.addListener(new ControlListener() {
+			@Override
+			public void controlEvent(ControlEvent e) {
+				particleSys.setParallel(e.controller().value() > 0);
+			}
+		});
+
 		radiusSlider = gui.addSlider("setRadius", 50, 200, 420, 20, 100, 20);
 		radiusSlider.setLabel("attrator radius");
 		radiusSlider.addListener(new ControlListener() {
@@ -600,34 +616,85 @@ public class FacadeApp extends PApplet {
 		displaceSlider.addListener(new ControlListener() {
 			@Override
 			public void controlEvent(ControlEvent e) {
-				displacement.setDisplacementStrength(e.controller().value());
-				computeDisplacedShapes();
+				pipeline.setDisplacementStrength(e.controller().value());
+				pipeline.update(Stage.DISPLACEMENT);
 			}
 		});
 		displaceSlider.hide();
 
-		voxelSlider = gui.addSlider("voxelRes", 32, 192, 420, 20, 100, 20);
+		voxelSlider = gui.addSlider("voxelRes", 32, 512, pipeline.getVoxelRes(),
+				420, 20, 100, 20);
 		voxelSlider.setLabel("voxel resolution");
 		voxelSlider.addListener(new ControlListener() {
 			@Override
 			public void controlEvent(ControlEvent e) {
-				voxelRes = (int) e.controller().value();
-				voxelizeStructure();
+				pipeline.setVoxelRes((int) e.controller().value());
+				meshBuilder.requestMesh();
 			}
 		});
 		voxelSlider.hide();
 
+		strutSlider = gui.addSlider("strutRadius", 0, 12,
+				pipeline.getStrutRadius(), 420, 110, 100, 20);
+		strutSlider.setLabel("strut radius");
+		strutSlider.addListener(new ControlListener() {
+			@Override
+			public void controlEvent(ControlEvent e) {
+				float radius = e.controller().value();
+				// capsule struts are already smooth, brush strokes are not
+				pipeline.setSmoothIterations(radius > 0 ? 0
+						: FacadePipeline.DEFAULT_SMOOTH_ITERATIONS);
+				pipeline.setStrutRadius(radius);
+				meshBuilder.requestMesh();
+			}
+		});
+		strutSlider.hide();
+
+		btDualContouring = gui.addToggle("dualContouring", 420, 140, 20, 20);
+		btDualContouring.setLabel("adaptive mesh");
+		btDualContouring.addListener(new ControlListener() {
+			@Override
+			public void controlEvent(ControlEvent e) {
+				pipeline.setUseDualContouring(e.controller().value() > 0);
+				meshBuilder.requestMesh();
+			}
+		});
+		btDualContouring.hide();
+
+		decimateSlider = gui.addSlider("decimate", 0, 95, 0, 420, 180, 100, 20);
+		decimateSlider.setLabel("STL reduction %");
+		decimateSlider.hide();
+
 		btExportSTL = gui.addButton("exportSTL", 0, 420, 50, 100, 20);
 		btExportSTL.setLabel("export STL");
 		btExportSTL.addListener(new ControlListener() {
 			@Override
 			public void controlEvent(ControlEvent e) {
-				mesh.saveAsSTL(sketchPath("facade-" + DateUtils.timeStamp()
-						+ ".stl"));
+				// only export finished full resolution meshes
+				WETriangleMesh mesh = meshBuilder.getMesh();
+				if (mesh != null && !meshBuilder.isBuilding()) {
+					exporter.exportMesh(mesh, (int) decimateSlider.value(),
+							sketchPath("facade-" + DateUtils.timeStamp()
+									+ ".stl"));
+				}
 			}
 		});
 		btExportSTL.hide();
 
+		btStreamSTL = gui.addButton("streamSTL", 0, 420, 80, 100, 20);
+		btStreamSTL.setLabel("export raw STL");
+		btStreamSTL.addListener(new ControlListener() {
+			@Override
+			public void controlEvent(ControlEvent e) {
+				exporter.exportStreamed(pipeline, sketchPath("facade-raw-"
+						+ DateUtils.timeStamp() + ".stl"));
+			}
+		});
+		btStreamSTL.hide();
+
+		exportStatus = gui.addTextlabel("exportStatus", "", 530, 56);
+		exportStatus.hide();
+
 		btResetSpline = gui.addButton("resetSpline", 0, (int) splineEditor
 				.getBounds().getLeft() + 20, 20, 100, 20);
 		btResetSpline.setLabel("Reset spline");
@@ -635,6 +702,10 @@ public class FacadeApp extends PApplet {
 			@Override
 			public void controlEvent(ControlEvent arg0) {
 				splineEditor.resetSpline();
+				pipeline.invalidate(Stage.SPLINE_POINTS);
+				if (drawMode == 1) {
+					pipeline.update(Stage.DISPLACEMENT);
+				}
 			}
 		});
 
@@ -725,9 +796,9 @@ public class FacadeApp extends PApplet {
 				arcBall.mouseDragged(mousePos);
 			}
 		} else if (splineEditor.mouseDragged(mousePos)) {
+			pipeline.invalidate(Stage.SPLINE_POINTS);
 			if (drawMode > 0) {
-				computePointsOnSpline();
-				computeDisplacedShapes();
+				pipeline.update(Stage.DISPLACEMENT);
 			}
 		}
 	}
@@ -743,9 +814,9 @@ public class FacadeApp extends PApplet {
 	public void mousePressed() {
 		Vec2D mousePos = new Vec2D(mouseX, mouseY);
 		if (splineEditor.mousePressed(mousePos)) {
+			pipeline.invalidate(Stage.SPLINE_POINTS);
 			if (drawMode == 1) {
-				computePointsOnSpline();
-				computeDisplacedShapes();
+				pipeline.update(Stage.DISPLACEMENT);
 			}
 		} else {
 			if (mouseButton == RIGHT) {
@@ -796,63 +867,10 @@ public class FacadeApp extends PApplet {
 		initParticleSystem();
 		initSplineEditor();
 		initDisplacement();
+		initPipeline();
+		initMetrics();
 		initArcball();
 		initGUI();
 		initZoom();
 	}
-
-	/**
-	 * Voxelizes the current contents of the 3D displaced shapes list and
-	 * constructs an iso surface mesh from the voxel structure.
-	 */
-	public void voxelizeStructure() {
-		// create empty container for iso surface mesh
-		mesh = new WETriangleMesh();
-		// get the extent of the 3d bounding box enclosing
-		// all displaced facade points
-		Vec3D extent = bounds3D.getExtent();
-		// figure out which axis is the longest/largest
-		float maxAxis = max(extent.x, extent.y, extent.z);
-		// scale voxel resolution per axis in relation to major axis
-		int resX = (int) (extent.x / maxAxis * voxelRes);
-		int resY = (int) (extent.y / maxAxis * voxelRes);
-		int resZ = (int) (extent.z / maxAxis * voxelRes);
-		// create a new mesh lattice builder utility configured
-		// to match the current physical size of the facade and voxel resolution
-		MeshLatticeBuilder builder = new MeshLatticeBuilder(extent.scale(2),
-				resX, resY, resZ, new FloatRange(1, 1));
-		// use a slightly enlarged bounding box as range for input coordinates
-		// it needs to be slightly larger to avoid clipping/thinning of the
-		// voxel structure
-		// at the sides of the volume
-		builder.setInputBounds(new AABB(bounds3D, extent.scale(1.1f)));
-		// ask the builder for the underlying volumetric/voxel space data
-		// structure
-		VolumetricSpace volume = builder.getVolume();
-		// create a volumetric brush associated with this volume and using a
-		// small brush size
-		VolumetricBrush brush = new BoxBrush(volume, 0.33f);
-		// set the brush mode so that lower density values don't overwrite
-		// existing higher ones
-		brush.setMode(VolumetricBrush.MODE_PEAK);
-		// now iterate over all shapes and segments within each shape
-		for (LineStrip3D shape : displacedShapes) {
-			for (Line3D segment : shape.getSegments()) {
-				// use the builder class to represent the current line segment
-				// as voxels by sweeping the brush along the line at the given
-				// step distance (1 unit)
-				builder.createLattice(brush, segment, 1);
-			}
-		}
-		// finally ensure the volume will be water tight
-		volume.closeSides();
-		// create an iso surface for the volume and threshold value
-		// and turn it into a triangle mesh
-		new HashIsoSurface(volume).computeSurfaceMesh(mesh, 0.66f);
-		// center the mesh around the world origin (0,0,0)
-		mesh.center(new Vec3D(0, 0, 0));
-		// apply 2 iterations of the laplacian smooth filter to average
-		// neighboring mesh vertices and so reduce voxel aliasing
-		new LaplacianSmooth().filter(mesh, 2);
-	}
 }
@@ -0,0 +1,365 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import toxi.geom.Spline2D;
+import toxi.geom.Vec2D;
+import toxi.geom.mesh.WETriangleMesh;
+
+/**
+ * Headless command line tool to generate facade meshes without any display.
+ * Runs the entire {@link FacadePipeline} (particle relaxation, shapes, spline
+ * mapping, displacement, voxelization) for one or more seeded design variants
+ * and exports each result as STL file. Multiple variants are generated
+ * concurrently.
+ * 
+ * Run without arguments or with <code>--help</code> to see all options.
+ */
+public class FacadeBatch {
+
+	private static final String USAGE = "usage: java metworks.facade.FacadeBatch [options]\n"
+			+ "  --seed <n>          random seed of first variant (default 0)\n"
+			+ "  --variants <n>      number of variants, seeds are incremented (default 1)\n"
+			+ "  --threads <n>       max. number of variants built concurrently (default: #cores)\n"
+			+ "  --width <n>         width of particle system (default 640)\n"
+			+ "  --height <n>        height of particle system (default 360)\n"
+			+ "  --attractors <n>    number of attractors (default 3)\n"
+			+ "  --particles <n>     number of additional random particles (default 200)\n"
+			+ "  --separation <f>    particle separation distance (default 20)\n"
+			+ "  --drag <f>          physics drag (default 0.03)\n"
+			+ "  --steps <n>         number of physics steps (default 500)\n"
+			+ "  --packed            use primitive array particle store\n"
+			+ "  --voronoi           use voronoi cells (default: delaunay triangles)\n"
+			+ "  --spline <x,y;...>  spline control points (default: 128,180;64,360;128,540)\n"
+			+ "  --displace <f>      surface displacement strength (default 0)\n"
+			+ "  --voxel-res <n>     voxel resolution along longest axis (default 128)\n"
+			+ "  --strut-radius <f>  voxelize struts as smooth capsules of this radius\n"
+			+ "  --dual-contouring   use adaptive dual contouring instead of marching cubes\n"
+			+ "  --smooth <n>        number of mesh smoothing iterations (default 2)\n"
+			+ "  --taubin            use volume preserving Taubin smoothing\n"
+			+ "  --decimate <n>      simplify mesh to this number of triangles before export\n"
+			+ "  --decimate-error <f> max. error (squared distance) for simplification\n"
+			+ "  --stream            stream unsmoothed iso surface directly to STL\n"
+			+ "  --mapped            use memory mapped (off-heap) volume when streaming\n"
+			+ "  --out <prefix>      output file prefix (default: facade)";
+
+	/**
+	 * Main entry point. Parses the command line arguments and builds all
+	 * requested variants.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		FacadeBatch batch = new FacadeBatch();
+		try {
+			batch.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		if (batch.showHelp) {
+			System.out.println(USAGE);
+			return;
+		}
+		if (batch.run() > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Parses a list of spline control points given in the format:
+	 * <code>x1,y1;x2,y2;...</code>
+	 * 
+	 * @param s
+	 * @return spline
+	 */
+	public static Spline2D parseSpline(String s) {
+		Spline2D spline = new Spline2D();
+		for (String p : s.split(";")) {
+			String[] xy = p.split(",");
+			if (xy.length != 2) {
+				throw new IllegalArgumentException("invalid spline point: " + p);
+			}
+			spline.add(new Vec2D(Float.parseFloat(xy[0].trim()), Float
+					.parseFloat(xy[1].trim())));
+		}
+		if (spline.getNumPoints() < 3) {
+			throw new IllegalArgumentException(
+					"spline needs at least 3 control points");
+		}
+		return spline;
+	}
+
+	private long seed = 0;
+	private int numVariants = 1;
+	private int numThreads = ParallelTasks.NUM_THREADS;
+	private int width = 640;
+	private int height = 360;
+	private int numAttractors = 3;
+	private int numParticles = 200;
+	private float separation = 20;
+	private float drag = 0.03f;
+	private int numSteps = 500;
+	private boolean usePackedStore;
+	private boolean useVoronoi;
+	private String splinePoints = "128,180;64,360;128,540";
+	private float displace = 0;
+	private int voxelRes = 128;
+	private float strutRadius = 0;
+	private int smoothIterations = 2;
+	private boolean useTaubin;
+	private boolean useDualContouring;
+	private int decimateFaces = 0;
+	private float decimateError = 0;
+	private boolean useStreaming;
+	private boolean useMappedVolume;
+	private String outPrefix = "facade";
+	private boolean showHelp;
+
+	/**
+	 * Creates & configures a new pipeline instance for the given seed. The
+	 * particle system is fully set up, but not yet simulated.
+	 * 
+	 * @param variantSeed
+	 * @return pipeline
+	 */
+	public FacadePipeline createPipeline(long variantSeed) {
+		ParticleSystem particleSys = new ParticleSystem(width, height,
+				usePackedStore);
+		particleSys.setSeed(variantSeed);
+		particleSys.setSeparation(separation);
+		particleSys.setDrag(drag);
+		for (int i = 0; i < numAttractors; i++) {
+			particleSys.addAttractor();
+		}
+		particleSys.addParticles(numParticles);
+		particleSys.deselectAttractor();
+		DisplacementStrategy displacement = new NoiseDisplacement();
+		displacement.setDisplacementStrength(displace);
+		FacadePipeline pipeline = new FacadePipeline(particleSys,
+				parseSpline(splinePoints), displacement);
+		pipeline.setUseVoronoi(useVoronoi);
+		pipeline.setVoxelRes(voxelRes);
+		pipeline.setStrutRadius(strutRadius);
+		pipeline.setSmoothIterations(smoothIterations);
+		pipeline.setUseTaubinSmooth(useTaubin);
+		pipeline.setUseDualContouring(useDualContouring);
+		pipeline.setUseMappedVolume(useMappedVolume);
+		return pipeline;
+	}
+
+	/**
+	 * @param args
+	 * @param i
+	 *            index of option name
+	 * @return value of option at index i+1
+	 */
+	private String getOptionValue(String[] args, int i) {
+		if (i + 1 >= args.length) {
+			throw new IllegalArgumentException("missing value for option: "
+					+ args[i]);
+		}
+		return args[i + 1];
+	}
+
+	/**
+	 * Parses the given command line arguments and updates the configuration
+	 * accordingly.
+	 * 
+	 * @param args
+	 * @throws IllegalArgumentException
+	 *             if an option is unknown or has an invalid value
+	 */
+	public void parseArgs(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String opt = args[i];
+				if (opt.equals("--help") || opt.equals("-h")) {
+					showHelp = true;
+				} else if (opt.equals("--packed")) {
+					usePackedStore = true;
+				} else if (opt.equals("--voronoi")) {
+					useVoronoi = true;
+				} else if (opt.equals("--taubin")) {
+					useTaubin = true;
+				} else if (opt.equals("--dual-contouring")) {
+					useDualContouring = true;
+				} else if (opt.equals("--stream")) {
+					useStreaming = true;
+				} else if (opt.equals("--mapped")) {
+					useMappedVolume = true;
+				} else {
+					String val = getOptionValue(args, i++);
+					if (opt.equals("--seed")) {
+						seed = Long.parseLong(val);
+					} else if (opt.equals("--variants")) {
+						numVariants = Integer.parseInt(val);
+					} else if (opt.equals("--threads")) {
+						numThreads = Integer.parseInt(val);
+					} else if (opt.equals("--width")) {
+						width = Integer.parseInt(val);
+					} else if (opt.equals("--height")) {
+						height = Integer.parseInt(val);
+					} else if (opt.equals("--attractors")) {
+						numAttractors = Integer.parseInt(val);
+					} else if (opt.equals("--particles")) {
+						numParticles = Integer.parseInt(val);
+					} else if (opt.equals("--separation")) {
+						separation = Float.parseFloat(val);
+					} else if (opt.equals("--drag")) {
+						drag = Float.parseFloat(val);
+					} else if (opt.equals("--steps")) {
+						numSteps = Integer.parseInt(val);
+					} else if (opt.equals("--spline")) {
+						parseSpline(val);
+						splinePoints = val;
+					} else if (opt.equals("--displace")) {
+						displace = Float.parseFloat(val);
+					} else if (opt.equals("--voxel-res")) {
+						voxelRes = Integer.parseInt(val);
+					} else if (opt.equals("--strut-radius")) {
+						strutRadius = Float.parseFloat(val);
+					} else if (opt.equals("--smooth")) {
+						smoothIterations = Integer.parseInt(val);
+					} else if (opt.equals("--decimate")) {
+						decimateFaces = Integer.parseInt(val);
+					} else if (opt.equals("--decimate-error")) {
+						decimateError = Float.parseFloat(val);
+					} else if (opt.equals("--out")) {
+						outPrefix = val;
+					} else {
+						throw new IllegalArgumentException("unknown option: "
+								+ opt);
+					}
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid number: "
+					+ e.getMessage());
+		}
+		if (numVariants < 1 || numThreads < 1 || numSteps < 0 || voxelRes < 4
+				|| strutRadius < 0 || smoothIterations < 0 || decimateFaces < 0
+				|| decimateError < 0) {
+			throw new IllegalArgumentException("invalid option value");
+		}
+		if (useStreaming && (decimateFaces > 0 || decimateError > 0)) {
+			throw new IllegalArgumentException(
+					"decimation can't be used with --stream");
+		}
+	}
+
+	/**
+	 * Builds all configured variants, using a dedicated thread pool (separate
+	 * from the shared {@link ParallelTasks} pool used within each pipeline).
+	 * 
+	 * @return number of variants which failed (or weren't built, if
+	 *         interrupted)
+	 */
+	public int run() {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				numThreads, numVariants));
+		int numSaved = 0;
+		try {
+			List<Future<File>> results = new ArrayList<Future<File>>();
+			for (int i = 0; i < numVariants; i++) {
+				final long variantSeed = seed + i;
+				results.add(executor.submit(new Callable<File>() {
+
+					@Override
+					public File call() throws IOException {
+						return runVariant(variantSeed);
+					}
+				}));
+			}
+			for (Future<File> f : results) {
+				try {
+					System.out.println("saved: " + f.get().getPath());
+					numSaved++;
+				} catch (ExecutionException e) {
+					System.err.println("variant failed: " + e.getCause());
+					e.getCause().printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdown();
+		}
+		return numVariants - numSaved;
+	}
+
+	/**
+	 * Simulates the particle system for a single variant, runs the entire
+	 * geometry pipeline and saves the resulting (optionally decimated) mesh as
+	 * STL file. If streaming is enabled, the iso surface is written directly
+	 * into the file without building (and smoothing) a mesh.
+	 * 
+	 * @param variantSeed
+	 * @return STL file
+	 * @throws IOException
+	 */
+	public File runVariant(long variantSeed) throws IOException {
+		FacadePipeline pipeline = createPipeline(variantSeed);
+		ParticleSystem particleSys = pipeline.getParticleSystem();
+		for (int i = 0; i < numSteps; i++) {
+			particleSys.update();
+		}
+		File file = new File(outPrefix + "-" + variantSeed + ".stl");
+		if (useStreaming) {
+			pipeline.exportStreamedSTL(file.getAbsolutePath());
+		} else {
+			WETriangleMesh mesh = pipeline.run();
+			if (decimateFaces > 0 || decimateError > 0) {
+				QuadricDecimator decimator = new QuadricDecimator();
+				decimator.setTargetFaces(decimateFaces);
+				if (decimateError > 0) {
+					decimator.setMaxError(decimateError);
+				}
+				mesh = decimator.decimate(mesh);
+			}
+			mesh.saveAsSTL(file.getAbsolutePath());
+		}
+		return file;
+	}
+}
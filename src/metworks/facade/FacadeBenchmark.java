@@ -0,0 +1,613 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import metworks.facade.FacadePipeline.Stage;
+import toxi.geom.mesh.WETriangleMesh;
+import toxi.volume.VolumetricSpace;
+
+/**
+ * Headless micro benchmark harness measuring each stage of the
+ * {@link FacadePipeline} in isolation. Follows the usual JMH structure: for
+ * each combination of particle count, shape mode (delaunay/voronoi) and voxel
+ * resolution, a pipeline is created from a fixed seed and brought up to date,
+ * then every selected benchmark is run for a number of warmup iterations
+ * followed by timed measurement iterations. Per-invocation preparation (e.g.
+ * creating a fresh unsmoothed mesh for the smoothing benchmark) is excluded
+ * from the timings. Results are printed as table and can optionally be saved
+ * as CSV file to track regressions over time.
+ * 
+ * Run without arguments or with <code>--help</code> to see all options.
+ */
+public class FacadeBenchmark {
+
+	/**
+	 * A single benchmark of one pipeline stage. {@link #setup()} is called
+	 * once per parameter combination, {@link #prepare()} before each
+	 * (untimed) invocation of {@link #run()}.
+	 */
+	private abstract class StageBenchmark {
+
+		final String name;
+
+		/**
+		 * true, if the benchmark depends on the voxel resolution
+		 */
+		final boolean usesVoxelRes;
+
+		StageBenchmark(String name, boolean usesVoxelRes) {
+			this.name = name;
+			this.usesVoxelRes = usesVoxelRes;
+		}
+
+		void prepare() throws IOException {
+		}
+
+		abstract void run() throws IOException;
+
+		void setup() throws IOException {
+		}
+	}
+
+	private static final String USAGE = "usage: java metworks.facade.FacadeBenchmark [options]\n"
+			+ "  --bench <a,b,...>      benchmarks to run (default: all)\n"
+			+ "                         particles, shapes, lattice, spline, displacement,\n"
+			+ "                         voxelize, isosurface, dualcontouring, smooth,\n"
+			+ "                         mesh, decimate, stl, stream\n"
+			+ "  --particles <n,n,...>  particle counts (default 1000,10000,100000)\n"
+			+ "  --voxel-res <n,n,...>  voxel resolutions (default 32,64,128,256,512)\n"
+			+ "  --modes <m,m>          shape modes: delaunay, voronoi (default: both)\n"
+			+ "  --warmup <n>           warmup iterations (default 3)\n"
+			+ "  --iterations <n>       measurement iterations (default 5)\n"
+			+ "  --seed <n>             random seed (default 0)\n"
+			+ "  --steps <n>            physics steps before measuring (default 50)\n"
+			+ "  --packed               use primitive array particle store\n"
+			+ "  --mapped               use memory mapped volume for stream benchmark\n"
+			+ "  --strut-radius <f>     voxelize struts as capsules (default 0: brush)\n"
+			+ "  --csv <file>           also save results as CSV file";
+
+	private static final String[] MODES = { "delaunay", "voronoi" };
+
+	/**
+	 * Main entry point. Parses the command line arguments and runs all
+	 * selected benchmarks.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		FacadeBenchmark bench = new FacadeBenchmark();
+		try {
+			bench.parseArgs(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		if (bench.showHelp) {
+			System.out.println(USAGE);
+			return;
+		}
+		try {
+			bench.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Parses a comma separated list of integers.
+	 * 
+	 * @param s
+	 * @return values
+	 */
+	private static int[] parseIntList(String s) {
+		String[] items = s.split(",");
+		int[] values = new int[items.length];
+		for (int i = 0; i < items.length; i++) {
+			values[i] = Integer.parseInt(items[i].trim());
+		}
+		return values;
+	}
+
+	private String[] benchNames;
+	private int[] particleCounts = { 1000, 10000, 100000 };
+	private int[] voxelResolutions = { 32, 64, 128, 256, 512 };
+	private String[] modes = MODES;
+	private int numWarmup = 3;
+	private int numIterations = 5;
+	private long seed = 0;
+	private int numSteps = 50;
+	private boolean usePackedStore;
+	private boolean useMappedVolume;
+	private float strutRadius;
+	private String csvPath;
+	private boolean showHelp;
+
+	/**
+	 * Current parameter combination & pipeline state
+	 */
+	private FacadePipeline pipeline;
+	private int voxelRes;
+	private File tmpFile;
+
+	/**
+	 * Accumulates results of all benchmarks to prevent the JIT from
+	 * eliminating the measured code
+	 */
+	private long sink;
+
+	private final List<StageBenchmark> benchmarks = new ArrayList<StageBenchmark>();
+
+	/**
+	 * Creates a new harness with all available benchmarks.
+	 */
+	public FacadeBenchmark() {
+		benchmarks.add(new StageBenchmark("particles", false) {
+
+			@Override
+			void run() {
+				pipeline.getParticleSystem().update();
+			}
+		});
+		benchmarks.add(new StageBenchmark("shapes", false) {
+
+			@Override
+			void run() {
+				pipeline.computeClippedShapes();
+				sink += pipeline.getClippedShapes().size();
+			}
+		});
+		benchmarks.add(new StageBenchmark("lattice", false) {
+
+			@Override
+			void run() {
+				pipeline.computeLatticeGraph();
+				sink += pipeline.getLattice().numEdges;
+			}
+		});
+		benchmarks.add(new StageBenchmark("spline", false) {
+
+			@Override
+			void run() {
+				pipeline.computePointsOnSpline();
+				sink += pipeline.getSplineLattice().numNodes;
+			}
+		});
+		benchmarks.add(new StageBenchmark("displacement", false) {
+
+			@Override
+			void prepare() {
+				// measure uncached noise computation
+				DisplacementStrategy d = pipeline.getDisplacement();
+				if (d instanceof NoiseDisplacement) {
+					((NoiseDisplacement) d).invalidateCache();
+				}
+			}
+
+			@Override
+			void run() {
+				pipeline.computeDisplacedShapes();
+				sink += pipeline.getDisplacedLattice().numNodes;
+			}
+		});
+		benchmarks.add(new StageBenchmark("voxelize", true) {
+
+			@Override
+			void run() {
+				VolumetricSpace volume = createVolume();
+				sink += volume.numCells;
+			}
+		});
+		benchmarks.add(new StageBenchmark("isosurface", true) {
+
+			private VolumetricSpace volume;
+
+			@Override
+			void setup() {
+				volume = createVolume();
+			}
+
+			@Override
+			void run() {
+				WETriangleMesh mesh = new WETriangleMesh();
+				new ParallelIsoSurface(volume).computeSurfaceMesh(mesh,
+						FacadePipeline.ISO_THRESHOLD);
+				sink += mesh.getNumFaces();
+			}
+		});
+		benchmarks.add(new StageBenchmark("dualcontouring", true) {
+
+			private VolumetricSpace volume;
+
+			@Override
+			void setup() {
+				volume = createVolume();
+			}
+
+			@Override
+			void run() {
+				WETriangleMesh mesh = new WETriangleMesh();
+				new DualContouringIsoSurface(volume).computeSurfaceMesh(mesh,
+						FacadePipeline.ISO_THRESHOLD);
+				sink += mesh.getNumFaces();
+			}
+		});
+		benchmarks.add(new StageBenchmark("smooth", true) {
+
+			private VolumetricSpace volume;
+			private WETriangleMesh mesh;
+
+			@Override
+			void prepare() {
+				// smoothing modifies the mesh, so each invocation needs a
+				// fresh copy
+				mesh = new WETriangleMesh();
+				new ParallelIsoSurface(volume).computeSurfaceMesh(mesh,
+						FacadePipeline.ISO_THRESHOLD);
+			}
+
+			@Override
+			void run() {
+				new ParallelLaplacianSmooth().filter(mesh,
+						pipeline.getSmoothIterations());
+				sink += mesh.getNumVertices();
+			}
+
+			@Override
+			void setup() {
+				volume = createVolume();
+			}
+		});
+		benchmarks.add(new StageBenchmark("mesh", true) {
+
+			@Override
+			void run() {
+				pipeline.voxelizeStructure();
+				sink += pipeline.getMesh().getNumFaces();
+			}
+		});
+		benchmarks.add(new StageBenchmark("decimate", true) {
+
+			@Override
+			void run() {
+				WETriangleMesh mesh = pipeline.getMesh();
+				QuadricDecimator decimator = new QuadricDecimator();
+				decimator.setTargetFaces(mesh.getNumFaces() / 4);
+				sink += decimator.decimate(mesh).getNumFaces();
+			}
+
+			@Override
+			void setup() {
+				pipeline.update(Stage.MESH);
+			}
+		});
+		benchmarks.add(new StageBenchmark("stl", true) {
+
+			@Override
+			void run() {
+				pipeline.getMesh().saveAsSTL(tmpFile.getAbsolutePath());
+				sink += tmpFile.length();
+			}
+
+			@Override
+			void setup() {
+				pipeline.update(Stage.MESH);
+			}
+		});
+		benchmarks.add(new StageBenchmark("stream", true) {
+
+			@Override
+			void run() throws IOException {
+				sink += pipeline.exportStreamedSTL(tmpFile.getAbsolutePath());
+			}
+		});
+	}
+
+	/**
+	 * @return volume of the current displaced lattice at the current voxel
+	 *         resolution
+	 */
+	private VolumetricSpace createVolume() {
+		return FacadePipeline.createVolume(pipeline.getDisplacedLattice(),
+				pipeline.getBounds3D(), voxelRes, pipeline.getStrutRadius());
+	}
+
+	/**
+	 * Creates a pipeline with the given number of particles & shape mode from
+	 * the configured seed, relaxes the particle system and computes all
+	 * stages up to the displacement.
+	 * 
+	 * @param numParticles
+	 * @param mode
+	 * @return pipeline
+	 */
+	private FacadePipeline createPipeline(int numParticles, String mode) {
+		List<String> args = new ArrayList<String>();
+		args.add("--particles");
+		args.add(String.valueOf(numParticles));
+		if (usePackedStore) {
+			args.add("--packed");
+		}
+		if (mode.equals("voronoi")) {
+			args.add("--voronoi");
+		}
+		if (useMappedVolume) {
+			args.add("--mapped");
+		}
+		args.add("--strut-radius");
+		args.add(String.valueOf(strutRadius));
+		FacadeBatch batch = new FacadeBatch();
+		batch.parseArgs(args.toArray(new String[args.size()]));
+		FacadePipeline p = batch.createPipeline(seed);
+		for (int i = 0; i < numSteps; i++) {
+			p.getParticleSystem().update();
+		}
+		p.update(Stage.DISPLACEMENT);
+		return p;
+	}
+
+	/**
+	 * @param name
+	 * @return true, if the benchmark with the given name has been selected
+	 */
+	private boolean isSelected(String name) {
+		if (benchNames == null) {
+			return true;
+		}
+		for (String n : benchNames) {
+			if (n.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs warmup & measurement iterations of the given benchmark.
+	 * 
+	 * @param b
+	 * @return execution time of each measurement iteration (in ns)
+	 * @throws IOException
+	 */
+	private long[] measure(StageBenchmark b) throws IOException {
+		b.setup();
+		for (int i = 0; i < numWarmup; i++) {
+			b.prepare();
+			b.run();
+		}
+		long[] times = new long[numIterations];
+		for (int i = 0; i < numIterations; i++) {
+			b.prepare();
+			long t = System.nanoTime();
+			b.run();
+			times[i] = System.nanoTime() - t;
+		}
+		return times;
+	}
+
+	/**
+	 * @param args
+	 * @param i
+	 *            index of option name
+	 * @return value of option at index i+1
+	 */
+	private String getOptionValue(String[] args, int i) {
+		if (i + 1 >= args.length) {
+			throw new IllegalArgumentException("missing value for option: "
+					+ args[i]);
+		}
+		return args[i + 1];
+	}
+
+	/**
+	 * Parses the given command line arguments and updates the configuration
+	 * accordingly.
+	 * 
+	 * @param args
+	 * @throws IllegalArgumentException
+	 *             if an option is unknown or has an invalid value
+	 */
+	public void parseArgs(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String opt = args[i];
+				if (opt.equals("--help") || opt.equals("-h")) {
+					showHelp = true;
+				} else if (opt.equals("--packed")) {
+					usePackedStore = true;
+				} else if (opt.equals("--mapped")) {
+					useMappedVolume = true;
+				} else {
+					String val = getOptionValue(args, i++);
+					if (opt.equals("--bench")) {
+						benchNames = val.split(",");
+					} else if (opt.equals("--particles")) {
+						particleCounts = parseIntList(val);
+					} else if (opt.equals("--voxel-res")) {
+						voxelResolutions = parseIntList(val);
+					} else if (opt.equals("--modes")) {
+						modes = val.split(",");
+					} else if (opt.equals("--warmup")) {
+						numWarmup = Integer.parseInt(val);
+					} else if (opt.equals("--iterations")) {
+						numIterations = Integer.parseInt(val);
+					} else if (opt.equals("--seed")) {
+						seed = Long.parseLong(val);
+					} else if (opt.equals("--steps")) {
+						numSteps = Integer.parseInt(val);
+					} else if (opt.equals("--strut-radius")) {
+						strutRadius = Float.parseFloat(val);
+					} else if (opt.equals("--csv")) {
+						csvPath = val;
+					} else {
+						throw new IllegalArgumentException("unknown option: "
+								+ opt);
+					}
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid number: "
+					+ e.getMessage());
+		}
+		if (numWarmup < 0 || numIterations < 1 || numSteps < 0
+				|| strutRadius < 0) {
+			throw new IllegalArgumentException("invalid option value");
+		}
+		for (int res : voxelResolutions) {
+			if (res < 4) {
+				throw new IllegalArgumentException("invalid voxel resolution: "
+						+ res);
+			}
+		}
+		for (String m : modes) {
+			if (!m.equals(MODES[0]) && !m.equals(MODES[1])) {
+				throw new IllegalArgumentException("unknown mode: " + m);
+			}
+		}
+		if (benchNames != null) {
+			for (String n : benchNames) {
+				boolean isKnown = false;
+				for (StageBenchmark b : benchmarks) {
+					isKnown |= b.name.equals(n);
+				}
+				if (!isKnown) {
+					throw new IllegalArgumentException("unknown benchmark: "
+							+ n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Formats & prints the results of a single benchmark and adds them to the
+	 * CSV file (if any).
+	 * 
+	 * @param b
+	 * @param numParticles
+	 * @param mode
+	 * @param times
+	 * @param csv
+	 */
+	private void report(StageBenchmark b, int numParticles, String mode,
+			long[] times, PrintWriter csv) {
+		double mean = 0, min = Double.MAX_VALUE;
+		for (long t : times) {
+			mean += t;
+			min = Math.min(min, t);
+		}
+		mean /= times.length;
+		double variance = 0;
+		for (long t : times) {
+			variance += (t - mean) * (t - mean);
+		}
+		double stdDev = times.length > 1 ? Math.sqrt(variance
+				/ (times.length - 1)) : 0;
+		String res = b.usesVoxelRes ? String.valueOf(voxelRes) : "-";
+		System.out.println(String.format(Locale.US,
+				"%-13s %9d %-9s %6s %4d %12.3f %10.3f %12.3f ms/op", b.name,
+				numParticles, mode, res, times.length, mean / 1e6,
+				stdDev / 1e6, min / 1e6));
+		if (csv != null) {
+			csv.println(String.format(Locale.US,
+					"%s,%d,%s,%s,%d,%.4f,%.4f,%.4f", b.name, numParticles,
+					mode, b.usesVoxelRes ? res : "", times.length, mean / 1e6,
+					stdDev / 1e6, min / 1e6));
+		}
+	}
+
+	/**
+	 * Runs all selected benchmarks for all parameter combinations. Stages
+	 * independent of the voxel resolution are only measured once per particle
+	 * count & mode.
+	 * 
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		PrintWriter csv = null;
+		tmpFile = File.createTempFile("facade-bench", ".stl");
+		tmpFile.deleteOnExit();
+		try {
+			if (csvPath != null) {
+				csv = new PrintWriter(new FileWriter(csvPath));
+				csv.println("benchmark,particles,mode,voxel_res,iterations,"
+						+ "mean_ms,stddev_ms,min_ms");
+			}
+			System.out.println(String.format(Locale.US,
+					"%-13s %9s %-9s %6s %4s %12s %10s %12s", "Benchmark",
+					"particles", "mode", "res", "cnt", "mean", "stddev",
+					"min"));
+			for (int numParticles : particleCounts) {
+				for (String mode : modes) {
+					for (StageBenchmark b : benchmarks) {
+						if (!b.usesVoxelRes && isSelected(b.name)) {
+							// use a fresh pipeline for each benchmark, so
+							// results don't depend on the selection
+							pipeline = createPipeline(numParticles, mode);
+							report(b, numParticles, mode, measure(b), csv);
+						}
+					}
+					for (int res : voxelResolutions) {
+						voxelRes = res;
+						pipeline = null;
+						for (StageBenchmark b : benchmarks) {
+							if (b.usesVoxelRes && isSelected(b.name)) {
+								if (pipeline == null) {
+									pipeline = createPipeline(numParticles,
+											mode);
+								}
+								pipeline.setVoxelRes(res);
+								report(b, numParticles, mode, measure(b), csv);
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			if (csv != null) {
+				csv.close();
+			}
+			tmpFile.delete();
+		}
+		// print sink so it can't be optimized away
+		System.out.println("(checksum: " + sink + ")");
+	}
+}
@@ -0,0 +1,1077 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+import toxi.geom.AABB;
+import toxi.geom.LineStrip2D;
+import toxi.geom.Polygon2D;
+import toxi.geom.Spline2D;
+import toxi.geom.Vec2D;
+import toxi.geom.Vec3D;
+import toxi.geom.mesh.WETriangleMesh;
+import toxi.geom.mesh2d.Voronoi;
+import toxi.math.MathUtils;
+import toxi.volume.VolumetricBrush;
+import toxi.volume.VolumetricSpace;
+
+/**
+ * The complete geometry pipeline turning the particle system & spline
+ * profile into a printable facade mesh. This class has no dependency on
+ * Processing's PApplet and so can be used both by the interactive
+ * {@link FacadeApp} and headless (e.g. by {@link FacadeBatch}).
+ * 
+ * The individual stages are:
+ * <ol>
+ * <li>{@link #computeClippedShapes()}: particles to Voronoi/Delaunay shapes</li>
+ * <li>{@link #computeLatticeGraph()}: shapes welded into a node/strut graph</li>
+ * <li>{@link #computePointsOnSpline()}: 2D graph mapped onto spline profile</li>
+ * <li>{@link #computeDisplacedShapes()}: surface displacement</li>
+ * <li>{@link #voxelizeStructure()}: voxelization & iso surface mesh</li>
+ * </ol>
+ * 
+ * Each of these {@link Stage}s caches its output and keeps a dirty flag.
+ * Changing an input (particle positions, voronoi setting, spline, displacement
+ * or voxel resolution) only marks the stage using it and all stages
+ * downstream as outdated, and {@link #update(Stage)} then only re-runs the
+ * outdated stages needed for the requested output. Particle movement and
+ * spline edits (by comparing the spline against the control points it has
+ * last been mapped with) are detected automatically.
+ */
+public class FacadePipeline {
+
+	/**
+	 * Pipeline stages in order of execution. Each stage only depends on the
+	 * output of its input stage (and its own settings).
+	 */
+	public enum Stage {
+
+		/**
+		 * Voronoi/Delaunay shapes computed from the particle positions
+		 */
+		SHAPES(null),
+
+		/**
+		 * 2D lattice graph with welded shape vertices & unique edges
+		 */
+		LATTICE(SHAPES),
+
+		/**
+		 * 2D lattice graph mapped onto the spline profile
+		 */
+		SPLINE_POINTS(LATTICE),
+
+		/**
+		 * Surface displacement of the spline lattice
+		 */
+		DISPLACEMENT(SPLINE_POINTS),
+
+		/**
+		 * Voxelized & smoothed iso surface mesh of the displaced lattice
+		 */
+		MESH(DISPLACEMENT);
+
+		private final Stage input;
+
+		private Stage(Stage input) {
+			this.input = input;
+		}
+
+		/**
+		 * @param stage
+		 * @return true, if this stage is the same as or (indirectly) depends
+		 *         on the given stage
+		 */
+		public boolean dependsOn(Stage stage) {
+			for (Stage s = this; s != null; s = s.input) {
+				if (s == stage) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return stage this stage takes its input from (or null)
+		 */
+		public Stage getInput() {
+			return input;
+		}
+	}
+
+	/**
+	 * particle system for managing the spatial distribution of points on the
+	 * facade using physics
+	 */
+	private final ParticleSystem particleSys;
+
+	/**
+	 * spline defining the facade profile
+	 */
+	private final Spline2D spline;
+
+	/**
+	 * arc length parameterisation of the spline used to map shapes onto it
+	 */
+	private final SplineArcLengthTable splineTable = new SplineArcLengthTable();
+
+	/**
+	 * surface displacement instance applied to each vertex of every splineShape
+	 * entry
+	 */
+	private DisplacementStrategy displacement;
+
+	/**
+	 * particles are connected into triangles and then clipped to a bounding
+	 * rectangle. this list stores the clipped 2D version of these resulting
+	 * shapes
+	 */
+	private List<Polygon2D> clippedPolies;
+
+	/**
+	 * clipper used to constrain the voronoi/delaunay shapes to the particle
+	 * system bounds
+	 */
+	private final ParallelPolygonClipper clipper;
+
+	/**
+	 * neighbouring shapes share their edges, so the clipped shapes are welded
+	 * into a graph of unique nodes & edges (still in 2D)
+	 */
+	private LatticeGraph lattice;
+
+	/**
+	 * the lattice graph mapped onto the spline profile in 3D space
+	 */
+	private LatticeGraph splineLattice;
+
+	/**
+	 * this is a duplicate of splineLattice with added surface displacement
+	 * (user controllable)
+	 */
+	private LatticeGraph displacedLattice;
+
+	/**
+	 * displacement amount for each node of the spline lattice
+	 */
+	private float[] displaceAmp;
+
+	/**
+	 * 3D bounding box of all nodes in displacedLattice this box is needed to
+	 * correctly compute the iso surface mesh. AABB = axis aligned bounding box.
+	 */
+	private AABB bounds3D;
+
+	/**
+	 * mesh instance to hold iso surface
+	 */
+	private WETriangleMesh mesh;
+
+	/**
+	 * volumetric grid resolution
+	 */
+	private int voxelRes = 128;
+
+	/**
+	 * voxel density threshold used for the iso surface
+	 */
+	static final float ISO_THRESHOLD = 0.66f;
+
+	/**
+	 * number of points processed by a single displacement task
+	 */
+	private static final int DISPLACEMENT_CHUNK_SIZE = 8192;
+
+	/**
+	 * default number of mesh smoothing iterations
+	 */
+	public static final int DEFAULT_SMOOTH_ITERATIONS = 2;
+
+	/**
+	 * number of mesh smoothing iterations
+	 */
+	private int smoothIterations = DEFAULT_SMOOTH_ITERATIONS;
+
+	/**
+	 * switch to use Taubin smoothing (if true) instead of plain laplacian
+	 * smoothing, which avoids shrinking the mesh
+	 */
+	private boolean useTaubinSmooth;
+
+	/**
+	 * radius of the capsule shaped struts voxelized by the
+	 * {@link CapsuleRasterizer} (0 = use box brush stamping instead)
+	 */
+	private float strutRadius;
+
+	/**
+	 * switch to voxelize into a memory mapped (off-heap) volume when streaming
+	 * the iso surface via {@link #exportStreamedSTL(String)}
+	 */
+	private boolean useMappedVolume;
+
+	/**
+	 * switch to use the adaptive {@link DualContouringIsoSurface} (if true)
+	 * instead of marching cubes
+	 */
+	private boolean useDualContouring;
+
+	/**
+	 * switch to indicate the shapes created should be voronoi cells (if true)
+	 * or delaunay triangles.
+	 */
+	private boolean useVoronoi;
+
+	/**
+	 * min. distance (in pixels) any particle needs to have moved before the
+	 * clipped shapes are recomputed by {@link #updateClippedShapes()}
+	 */
+	private static final float SHAPE_MOTION_THRESHOLD = 0.5f;
+
+	/**
+	 * keeps track of particle positions used for the current clipped shapes
+	 */
+	private final ParticleMotionTracker shapeTracker = new ParticleMotionTracker(
+			SHAPE_MOTION_THRESHOLD);
+
+	/**
+	 * stages whose outputs are outdated (initially all)
+	 */
+	private final EnumSet<Stage> dirtyStages = EnumSet.allOf(Stage.class);
+
+	/**
+	 * timer names used for each stage (in order of the {@link Stage} enum)
+	 */
+	private static final String[] STAGE_TIMERS = { "computeClippedShapes",
+			"computeLatticeGraph", "computePointsOnSpline", "computeDisplacedShapes",
+			"voxelizeStructure" };
+
+	/**
+	 * optional instrumentation of all stages (null = disabled)
+	 */
+	private StageMetrics metrics;
+
+	/**
+	 * Creates a new pipeline for the given inputs.
+	 * 
+	 * @param particleSys
+	 *            particle system
+	 * @param spline
+	 *            facade profile
+	 * @param displacement
+	 *            surface displacement strategy
+	 */
+	public FacadePipeline(ParticleSystem particleSys, Spline2D spline,
+			DisplacementStrategy displacement) {
+		this.particleSys = particleSys;
+		this.spline = spline;
+		this.displacement = displacement;
+		this.clipper = new ParallelPolygonClipper(particleSys.getBounds());
+	}
+
+	/**
+	 * Computes 2D Voronoi or Delaunay triangulation from the current particle
+	 * positions. The resulting shapes are then clipped to the particle system's
+	 * bounding rect and stored in clippedPolies list.
+	 */
+	public void computeClippedShapes() {
+		// Computing the voronoi also requires the Delaunay triangulation
+		Voronoi voronoi = new Voronoi();
+		for (int i = 0, num = particleSys.getNumParticles(); i < num; i++) {
+			voronoi.addPoint(new Vec2D(particleSys.getParticleX(i),
+					particleSys.getParticleY(i)));
+		}
+		// also add points along the bounding rect edges
+		List<Vec2D> boundingPoints = new LineStrip2D(particleSys.getBounds()
+				.toPolygon2D().scale(1.05f).vertices).getDecimatedVertices(50);
+		for (Vec2D p : boundingPoints) {
+			voronoi.addPoint(p);
+		}
+		// use a (multi-threaded) polygon clipper to constrain polygons to the
+		// bounding rectangle of the particle system
+		if (useVoronoi) {
+			clippedPolies = clipper.clipPolygons(voronoi.getRegions());
+		} else {
+			clippedPolies = clipper.clipTriangles(voronoi.getTriangles());
+		}
+		shapeTracker.update(particleSys);
+		setComputed(Stage.SHAPES);
+	}
+
+	/**
+	 * Duplicates the spline lattice and applies surface displacement to each
+	 * node. Afterwards it also updates the 3D bounding box enclosing all
+	 * displaced nodes.
+	 */
+	public void computeDisplacedShapes() {
+		final LatticeGraph graph = splineLattice;
+		final LatticeGraph displaced = graph.createDisplaced();
+		final float[] amp = displaceAmp;
+		final int numNodes = graph.numNodes;
+		// use the DisplacementStrategy to compute the displacement amounts
+		// for all nodes and then move them along their normals
+		final DisplacementStrategy strategy = displacement;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int from = 0; from < numNodes; from += DISPLACEMENT_CHUNK_SIZE) {
+			final int start = from;
+			final int end = Math.min(from + DISPLACEMENT_CHUNK_SIZE, numNodes);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					strategy.computeDisplacements(graph.x, graph.y, graph.z,
+							graph.normalX, graph.normalY, graph.normalZ, amp,
+							start, end);
+					graph.displace(displaced, amp, start, end);
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(tasks);
+		displacedLattice = displaced;
+		bounds3D = displaced.getBounds();
+		setComputed(Stage.DISPLACEMENT);
+	}
+
+	/**
+	 * Welds the vertices of all shapes in the {@link #clippedPolies} list into
+	 * a {@link LatticeGraph}, so that edges shared by neighbouring shapes are
+	 * only mapped, displaced & voxelized once.
+	 */
+	public void computeLatticeGraph() {
+		lattice = LatticeGraph.weld(clippedPolies, particleSys.getBounds(),
+				LatticeGraph.DEFAULT_WELD_TOLERANCE);
+		setComputed(Stage.LATTICE);
+	}
+
+	/**
+	 * Maps all nodes of the 2D lattice graph onto the 3D profile of the
+	 * current spline. Uses the relative X coordinate of the nodes as metric to
+	 * a related position on the curve and then constructs the surface in the
+	 * XY plane. Curve positions & normals are looked up in the spline's
+	 * {@link SplineArcLengthTable}, which is only rebuilt if the spline's
+	 * control points have changed.
+	 */
+	public void computePointsOnSpline() {
+		LatticeGraph graph = lattice.createMapped();
+		// get a fairly highres & uniformly sampled version of the curve
+		splineTable.update(spline);
+		float centroidX = splineTable.getCentroidX();
+		float centroidY = splineTable.getCentroidY();
+		float offsetY = particleSys.getBounds().height / 2;
+		// position & normal of current point on curve
+		float[] sample = new float[4];
+		// iterate over all nodes
+		for (int i = 0; i < graph.numNodes; i++) {
+			// use relative (normalized) X position to map to point on curve
+			// e.g. if a point was in the top left corner of the particle
+			// system it's relPos = {0.0, 0.0}
+			// point in bottom-right corner would have relPos = {1.0, 1.0}
+			splineTable.lookup(graph.relX[i], sample);
+			// center 2D curve point around 0,0
+			// the swizzling of coordinates is needed here because the
+			// spline itself has a generally vertical orientation (whereas
+			// the particle system is more horizontal)
+			graph.x[i] = sample[1] - centroidY;
+			graph.y[i] = lattice.y[i] - offsetY;
+			graph.z[i] = sample[0] - centroidX;
+			// transfer 2D normal into 3D XZ plane
+			graph.normalX[i] = sample[3];
+			graph.normalZ[i] = sample[2];
+		}
+		splineLattice = graph;
+		displaceAmp = new float[graph.numNodes];
+		setComputed(Stage.SPLINE_POINTS);
+	}
+
+	/**
+	 * Marks the given stage as up to date and all stages depending on it as
+	 * outdated.
+	 */
+	private void setComputed(Stage stage) {
+		invalidate(stage);
+		dirtyStages.remove(stage);
+	}
+
+	/**
+	 * @return 3D bounding box of the displaced lattice
+	 */
+	public AABB getBounds3D() {
+		return bounds3D;
+	}
+
+	/**
+	 * @return clipped voronoi/delaunay shapes (or null, if not yet computed)
+	 */
+	public List<Polygon2D> getClippedShapes() {
+		return clippedPolies;
+	}
+
+	/**
+	 * @return 2D lattice graph of the clipped shapes (or null, if not yet
+	 *         computed)
+	 */
+	public LatticeGraph getLattice() {
+		return lattice;
+	}
+
+	/**
+	 * @return displaced 3D lattice graph (or null, if not yet computed)
+	 */
+	public LatticeGraph getDisplacedLattice() {
+		return displacedLattice;
+	}
+
+	/**
+	 * @return surface displacement strategy
+	 */
+	public DisplacementStrategy getDisplacement() {
+		return displacement;
+	}
+
+	/**
+	 * @return iso surface mesh (or null, if not yet computed)
+	 */
+	public WETriangleMesh getMesh() {
+		return mesh;
+	}
+
+	/**
+	 * @return particle system
+	 */
+	public ParticleSystem getParticleSystem() {
+		return particleSys;
+	}
+
+	/**
+	 * @return facade profile spline
+	 */
+	public Spline2D getSpline() {
+		return spline;
+	}
+
+	/**
+	 * @return lattice graph mapped onto spline profile (or null, if not yet
+	 *         computed)
+	 */
+	public LatticeGraph getSplineLattice() {
+		return splineLattice;
+	}
+
+	/**
+	 * @return volumetric grid resolution
+	 */
+	public int getVoxelRes() {
+		return voxelRes;
+	}
+
+	/**
+	 * @return true, if voronoi cells are used (else delaunay triangles)
+	 */
+	public boolean isUsingVoronoi() {
+		return useVoronoi;
+	}
+
+	/**
+	 * @param stage
+	 * @return true, if the output of the given stage is outdated
+	 */
+	public boolean isDirty(Stage stage) {
+		return dirtyStages.contains(stage);
+	}
+
+	/**
+	 * Marks the given stage and all stages depending on it as outdated.
+	 * 
+	 * @param stage
+	 */
+	public void invalidate(Stage stage) {
+		for (Stage s : Stage.values()) {
+			if (s.dependsOn(stage)) {
+				dirtyStages.add(s);
+			}
+		}
+	}
+
+	/**
+	 * Brings all stages of the pipeline up to date: shapes, lattice graph,
+	 * spline mapping, displacement and voxelization.
+	 * 
+	 * @return iso surface mesh
+	 */
+	public WETriangleMesh run() {
+		update(Stage.MESH);
+		return mesh;
+	}
+
+	/**
+	 * @return number of mesh smoothing iterations
+	 */
+	public int getSmoothIterations() {
+		return smoothIterations;
+	}
+
+	/**
+	 * @return capsule strut radius (0 = box brush stamping)
+	 */
+	public float getStrutRadius() {
+		return strutRadius;
+	}
+
+	/**
+	 * @return true, if Taubin smoothing is used
+	 */
+	public boolean isUsingTaubinSmooth() {
+		return useTaubinSmooth;
+	}
+
+	/**
+	 * @return true, if the adaptive dual contouring mesher is used
+	 */
+	public boolean isUsingDualContouring() {
+		return useDualContouring;
+	}
+
+	/**
+	 * @return true, if streamed exports use a memory mapped volume
+	 */
+	public boolean isUsingMappedVolume() {
+		return useMappedVolume;
+	}
+
+	/**
+	 * Sets the surface displacement strategy.
+	 * 
+	 * @param displacement
+	 */
+	public void setDisplacement(DisplacementStrategy displacement) {
+		this.displacement = displacement;
+		invalidate(Stage.DISPLACEMENT);
+	}
+
+	/**
+	 * Sets the strength of the current displacement strategy.
+	 * 
+	 * @param strength
+	 */
+	public void setDisplacementStrength(float strength) {
+		if (strength != displacement.getDisplacementStrength()) {
+			displacement.setDisplacementStrength(strength);
+			invalidate(Stage.DISPLACEMENT);
+		}
+	}
+
+	/**
+	 * Enables instrumentation of all stages recomputed via
+	 * {@link #update(Stage)}.
+	 * 
+	 * @param metrics
+	 *            metrics instance (or null to disable)
+	 */
+	public void setMetrics(StageMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the number of smoothing iterations applied to the iso surface mesh
+	 * (0 = no smoothing).
+	 * 
+	 * @param num
+	 */
+	public void setSmoothIterations(int num) {
+		if (num != smoothIterations) {
+			smoothIterations = num;
+			invalidate(Stage.MESH);
+		}
+	}
+
+	/**
+	 * Sets the radius of the struts when voxelizing the lattice as capsule
+	 * signed distance field. The resulting surface is smooth enough to not
+	 * require any further smoothing (see {@link #setSmoothIterations(int)}).
+	 * 
+	 * Like the lattice itself, the radius is applied in input space, which is
+	 * shrunk by a factor of 1/1.1 in the resulting mesh.
+	 * 
+	 * @param radius
+	 *            strut radius in world units or 0 to use the default box brush
+	 *            stamping
+	 */
+	public void setStrutRadius(float radius) {
+		if (radius != strutRadius) {
+			strutRadius = radius;
+			invalidate(Stage.MESH);
+		}
+	}
+
+	/**
+	 * Switches between plain laplacian & Taubin (volume preserving) mesh
+	 * smoothing.
+	 * 
+	 * @param state
+	 */
+	public void setUseTaubinSmooth(boolean state) {
+		if (state != useTaubinSmooth) {
+			useTaubinSmooth = state;
+			invalidate(Stage.MESH);
+		}
+	}
+
+	/**
+	 * Switches between marching cubes & the adaptive dual contouring mesher,
+	 * which produces far fewer triangles for flat & smooth regions.
+	 * 
+	 * @param state
+	 */
+	public void setUseDualContouring(boolean state) {
+		if (state != useDualContouring) {
+			useDualContouring = state;
+			invalidate(Stage.MESH);
+		}
+	}
+
+	/**
+	 * Chooses between a sparse in-memory volume (default) and a memory mapped
+	 * volume stored in a temporary file for {@link #exportStreamedSTL(String)}
+	 * . The latter doesn't use any heap space for voxel data and allows for
+	 * resolutions exceeding the max. heap size.
+	 * 
+	 * @param state
+	 */
+	public void setUseMappedVolume(boolean state) {
+		useMappedVolume = state;
+	}
+
+	/**
+	 * Chooses between voronoi cells (if true) or delaunay triangles.
+	 * 
+	 * @param state
+	 */
+	public void setUseVoronoi(boolean state) {
+		if (state != useVoronoi) {
+			useVoronoi = state;
+			invalidate(Stage.SHAPES);
+		}
+	}
+
+	/**
+	 * Sets the volumetric grid resolution (along the longest axis).
+	 * 
+	 * @param res
+	 */
+	public void setVoxelRes(int res) {
+		if (res != voxelRes) {
+			voxelRes = res;
+			invalidate(Stage.MESH);
+		}
+	}
+
+	/**
+	 * Only recomputes the clipped shapes if they don't exist yet, the shape
+	 * type has been changed or if any particle has moved further than
+	 * {@link #SHAPE_MOTION_THRESHOLD} since they've been computed last.
+	 * 
+	 * @return true, if shapes have been recomputed
+	 */
+	public boolean updateClippedShapes() {
+		return update(Stage.SHAPES);
+	}
+
+	/**
+	 * Recomputes all outdated stages required for the output of the given
+	 * stage (in order), skipping all stages which are still up to date.
+	 * 
+	 * @param target
+	 *            requested stage
+	 * @return true, if any stage has been recomputed
+	 */
+	public boolean update(Stage target) {
+		if (shapeTracker.hasMoved(particleSys)) {
+			invalidate(Stage.SHAPES);
+		}
+		if (splineTable.hasChanged(spline)) {
+			invalidate(Stage.SPLINE_POINTS);
+		}
+		boolean hasChanged = false;
+		for (Stage s : Stage.values()) {
+			if (target.dependsOn(s) && dirtyStages.contains(s)) {
+				StageMetrics.Timer timer = null;
+				if (metrics != null) {
+					timer = metrics.getTimer(STAGE_TIMERS[s.ordinal()]);
+					timer.start();
+				}
+				switch (s) {
+				case SHAPES:
+					computeClippedShapes();
+					break;
+				case LATTICE:
+					computeLatticeGraph();
+					break;
+				case SPLINE_POINTS:
+					computePointsOnSpline();
+					break;
+				case DISPLACEMENT:
+					computeDisplacedShapes();
+					break;
+				case MESH:
+					voxelizeStructure();
+					break;
+				}
+				if (timer != null) {
+					timer.stop();
+				}
+				hasChanged = true;
+			}
+		}
+		return hasChanged;
+	}
+
+	/**
+	 * Voxelizes the current contents of the 3D displaced lattice and
+	 * constructs an iso surface mesh from the voxel structure.
+	 */
+	public void voxelizeStructure() {
+		mesh = createMesh(displacedLattice, bounds3D, voxelRes, strutRadius,
+				useDualContouring, smoothIterations, useTaubinSmooth);
+		setComputed(Stage.MESH);
+	}
+
+	/**
+	 * Voxelizes the given displaced lattice and constructs a smoothed iso
+	 * surface mesh from the voxel structure. This method doesn't use any
+	 * pipeline state and so can be used from any thread (as long as the given
+	 * lattice isn't modified meanwhile, see {@link BackgroundMeshBuilder}).
+	 * If the current thread is interrupted, the process is aborted between
+	 * steps by throwing a {@link CancellationException}.
+	 * 
+	 * @param lattice
+	 *            displaced lattice graph
+	 * @param bounds
+	 *            bounding box of displaced lattice
+	 * @param res
+	 *            voxel resolution along the longest axis
+	 * @param strutRadius
+	 *            capsule strut radius (0 = box brush stamping)
+	 * @param useDualContouring
+	 *            true, to use dual contouring instead of marching cubes
+	 * @param smoothIterations
+	 *            number of smoothing iterations
+	 * @param useTaubin
+	 *            true, to use Taubin smoothing
+	 * @return iso surface mesh
+	 */
+	public static WETriangleMesh createMesh(LatticeGraph lattice,
+			AABB bounds, int res, float strutRadius, boolean useDualContouring,
+			int smoothIterations, boolean useTaubin) {
+		VolumetricSpace volume = createVolume(lattice, bounds, res,
+				strutRadius);
+		checkCancelled();
+		// create empty container for iso surface mesh
+		WETriangleMesh mesh = new WETriangleMesh();
+		// create an iso surface for the volume and threshold value
+		// and turn it into a triangle mesh
+		if (useDualContouring) {
+			new DualContouringIsoSurface(volume).computeSurfaceMesh(mesh,
+					ISO_THRESHOLD);
+		} else {
+			new ParallelIsoSurface(volume).computeSurfaceMesh(mesh,
+					ISO_THRESHOLD);
+		}
+		checkCancelled();
+		// center the mesh around the world origin (0,0,0)
+		mesh.center(new Vec3D(0, 0, 0));
+		// apply a few iterations of the (multi-threaded) laplacian smooth
+		// filter to average neighboring mesh vertices and so reduce voxel
+		// aliasing
+		ParallelLaplacianSmooth smooth = new ParallelLaplacianSmooth();
+		smooth.setUseTaubin(useTaubin);
+		smooth.filter(mesh, smoothIterations);
+		return mesh;
+	}
+
+	private static void checkCancelled() {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new CancellationException();
+		}
+	}
+
+	/**
+	 * Voxelizes the current contents of the 3D displaced lattice and
+	 * streams the resulting iso surface directly into a binary STL file,
+	 * without building a mesh. Memory usage is therefore mostly independent
+	 * of the number of triangles. Since smoothing & centering require a mesh,
+	 * the exported surface is unsmoothed and in volume space (centered on
+	 * the voxel grid rather than the mesh bounds). Any outdated stages up to
+	 * the displacement are recomputed first. If enabled via
+	 * {@link #setUseMappedVolume(boolean)}, voxels are kept off-heap.
+	 * 
+	 * @param path
+	 *            STL file path
+	 * @return number of triangles written
+	 * @throws IOException
+	 */
+	public int exportStreamedSTL(String path) throws IOException {
+		update(Stage.DISPLACEMENT);
+		return exportStreamedSTL(displacedLattice, bounds3D, voxelRes,
+				strutRadius, useMappedVolume, useDualContouring, path);
+	}
+
+	/**
+	 * Voxelizes the given displaced lattice and streams the resulting
+	 * (unsmoothed) iso surface directly into a binary STL file. Unlike
+	 * {@link #exportStreamedSTL(String)} this doesn't touch any pipeline state
+	 * and can therefore be run on a background thread.
+	 * 
+	 * @param lattice
+	 *            displaced lattice graph
+	 * @param bounds
+	 *            bounding box of displaced lattice
+	 * @param voxelRes
+	 *            voxel resolution along the longest axis
+	 * @param strutRadius
+	 *            capsule strut radius (0 = box brush stamping)
+	 * @param useMappedVolume
+	 *            true, to keep voxels in a memory mapped temp file
+	 * @param useDualContouring
+	 *            true, to use adaptive dual contouring
+	 * @param path
+	 *            STL file path
+	 * @return number of triangles written
+	 * @throws IOException
+	 */
+	public static int exportStreamedSTL(LatticeGraph lattice, AABB bounds,
+			int voxelRes, float strutRadius, boolean useMappedVolume,
+			boolean useDualContouring, String path) throws IOException {
+		VolumetricSpace volume;
+		if (useMappedVolume) {
+			volume = createMappedVolume(lattice, bounds, voxelRes, strutRadius);
+		} else {
+			volume = createVolume(lattice, bounds, voxelRes, strutRadius);
+		}
+		StreamingSTLWriter writer = null;
+		try {
+			writer = new StreamingSTLWriter(path);
+			if (useDualContouring) {
+				new DualContouringIsoSurface(volume).computeSurface(
+						ISO_THRESHOLD, writer);
+			} else {
+				new ParallelIsoSurface(volume).computeSurface(ISO_THRESHOLD,
+						writer);
+			}
+		} finally {
+			try {
+				if (writer != null) {
+					writer.close();
+				}
+			} finally {
+				if (volume instanceof MappedVolumetricSpace) {
+					((MappedVolumetricSpace) volume).close();
+				}
+			}
+		}
+		return writer.getNumTriangles();
+	}
+
+	/**
+	 * Creates a volume matching the given bounds & voxel resolution and
+	 * rasterizes the displaced lattice into it.
+	 * 
+	 * @param lattice
+	 *            displaced lattice graph
+	 * @param bounds
+	 *            bounding box of displaced lattice
+	 * @param voxelRes
+	 *            voxel resolution along the longest axis
+	 * @param strutRadius
+	 *            capsule strut radius (0 = box brush stamping)
+	 * @return voxelized structure
+	 */
+	protected static VolumetricSpace createVolume(LatticeGraph lattice,
+			AABB bounds, int voxelRes, float strutRadius) {
+		// get the extent of the 3d bounding box enclosing
+		// all displaced facade points (incl. capsule padding)
+		Vec3D extent = getVolumeExtent(bounds, voxelRes, strutRadius);
+		int[] res = getVolumeRes(extent, voxelRes);
+		// create a sparse volumetric/voxel space data structure matching the
+		// current physical size of the facade and voxel resolution (only the
+		// regions around the lattice struts will use any memory)
+		VolumetricSpace volume = new BrickedVolumetricSpace(extent.scale(2),
+				res[0], res[1], res[2]);
+		voxelize(volume, lattice, new AABB(bounds, extent), strutRadius);
+		return volume;
+	}
+
+	/**
+	 * Like {@link #createVolume(LatticeGraph, AABB, int, float)}, but stores
+	 * the voxels off-heap in a memory mapped temporary file. The caller is
+	 * responsible for closing the volume.
+	 * 
+	 * @param lattice
+	 *            displaced lattice graph
+	 * @param bounds
+	 *            bounding box of displaced lattice
+	 * @param voxelRes
+	 *            voxel resolution along the longest axis
+	 * @param strutRadius
+	 *            capsule strut radius (0 = box brush stamping)
+	 * @return voxelized structure
+	 * @throws IOException
+	 *             if the backing file can't be created
+	 */
+	protected static MappedVolumetricSpace createMappedVolume(
+			LatticeGraph lattice, AABB bounds, int voxelRes, float strutRadius)
+			throws IOException {
+		Vec3D extent = getVolumeExtent(bounds, voxelRes, strutRadius);
+		int[] res = getVolumeRes(extent, voxelRes);
+		MappedVolumetricSpace volume = new MappedVolumetricSpace(
+				extent.scale(2), res[0], res[1], res[2]);
+		boolean isComplete = false;
+		try {
+			voxelize(volume, lattice, new AABB(bounds, extent), strutRadius);
+			isComplete = true;
+		} finally {
+			if (!isComplete) {
+				volume.close();
+			}
+		}
+		return volume;
+	}
+
+	/**
+	 * Computes the half size of the volume for the given lattice bounds. When
+	 * using capsule struts, the volume is grown by the max. reach of the
+	 * capsules' density field (incl. its ramp), since otherwise
+	 * {@link VolumetricSpace#closeSides()} would cut off the struts at the
+	 * sides of the volume. Since the padding is applied to the volume as a
+	 * whole, the mapping from input to voxel space stays uniform.
+	 * 
+	 * @param bounds
+	 *            bounding box of displaced lattice
+	 * @param voxelRes
+	 *            voxel resolution along the longest axis
+	 * @param strutRadius
+	 *            capsule strut radius (0 = box brush stamping)
+	 * @return half size of the volume
+	 */
+	private static Vec3D getVolumeExtent(AABB bounds, int voxelRes,
+			float strutRadius) {
+		Vec3D extent = bounds.getExtent();
+		if (strutRadius <= 0) {
+			return extent;
+		}
+		// the reach depends on the voxel size, which in turn depends on the
+		// padding, but only very weakly, so a few iterations are enough
+		// (the additional 10% of the input bounds act as safety margin)
+		Vec3D padded = extent;
+		for (int i = 0; i < 4; i++) {
+			// the input bounds are 1.1x the volume size & mapped to 1...res-2
+			int[] res = getVolumeRes(padded, voxelRes);
+			float voxelSize = MathUtils.max(2.2f * padded.x / (res[0] - 3),
+					2.2f * padded.y / (res[1] - 3),
+					2.2f * padded.z / (res[2] - 3));
+			float reach = strutRadius + ISO_THRESHOLD
+					* CapsuleRasterizer.RAMP_VOXELS * voxelSize;
+			padded = extent.add(reach / 1.1f, reach / 1.1f, reach / 1.1f);
+		}
+		return padded;
+	}
+
+	/**
+	 * @param extent
+	 *            half size of the volume
+	 * @param voxelRes
+	 *            voxel resolution along the longest axis
+	 * @return voxel resolution for each axis
+	 */
+	private static int[] getVolumeRes(Vec3D extent, int voxelRes) {
+		// figure out which axis is the longest/largest
+		float maxAxis = MathUtils.max(extent.x, extent.y, extent.z);
+		// scale voxel resolution per axis in relation to major axis
+		return new int[] { (int) (extent.x / maxAxis * voxelRes),
+				(int) (extent.y / maxAxis * voxelRes),
+				(int) (extent.z / maxAxis * voxelRes) };
+	}
+
+	/**
+	 * Rasterizes the given lattice into the (empty) volume.
+	 * 
+	 * @param volume
+	 *            target volume
+	 * @param lattice
+	 *            displaced lattice graph
+	 * @param bounds
+	 *            bounding box of displaced lattice (incl. capsule padding)
+	 * @param strutRadius
+	 *            capsule strut radius (0 = box brush stamping)
+	 */
+	private static void voxelize(VolumetricSpace volume, LatticeGraph lattice,
+			AABB bounds, float strutRadius) {
+		Vec3D extent = bounds.getExtent();
+		// use a slightly enlarged bounding box as range for input coordinates
+		// it needs to be slightly larger to avoid clipping/thinning of the
+		// voxel structure
+		// at the sides of the volume
+		AABB inputBounds = new AABB(bounds, extent.scale(1.1f));
+		if (strutRadius > 0) {
+			// evaluate the distance field of a capsule around each edge
+			CapsuleRasterizer rasterizer = new CapsuleRasterizer(volume,
+					inputBounds);
+			rasterizer.setRadius(strutRadius);
+			rasterizer.setIsoValue(ISO_THRESHOLD);
+			rasterizer.rasterize(lattice);
+			volume.closeSides();
+			return;
+		}
+		// create a multi-threaded rasterizer for this volume
+		LatticeRasterizer rasterizer = new LatticeRasterizer(volume,
+				inputBounds);
+		// use a small brush size
+		rasterizer.setBrushSize(0.33f);
+		// set the brush mode so that lower density values don't overwrite
+		// existing higher ones (this also makes the result independent of the
+		// order in which the parallel workers process the segments)
+		rasterizer.setMode(VolumetricBrush.MODE_PEAK);
+		// now sweep the brush along all unique edges of the lattice at the
+		// given step distance (1 unit)
+		rasterizer.setDrawStep(1);
+		rasterizer.rasterize(lattice);
+		// finally ensure the volume will be water tight
+		volume.closeSides();
+	}
+}
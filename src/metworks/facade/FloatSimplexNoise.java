@@ -0,0 +1,160 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package metworks.facade;
+
+/**
+ * Single precision version of the 2D variant of toxiclibs'
+ * {@link toxi.math.noise.SimplexNoise} (based on Stefan Gustavson's
+ * implementation of Ken Perlin's Simplex noise). Uses the same permutation &
+ * gradient tables, so the produced noise field is the same (apart from
+ * rounding differences), but avoids double precision math, the modulo
+ * operation per corner and the gradient dot product method calls.
+ */
+public final class FloatSimplexNoise {
+
+	private static final float F2 = (float) (0.5 * (Math.sqrt(3) - 1));
+	private static final float G2 = (float) ((3 - Math.sqrt(3)) / 6);
+	private static final float G22 = G2 * 2 - 1;
+
+	/**
+	 * Ken Perlin's reference permutation table
+	 */
+	private static final int[] P = {
+			151, 160, 137, 91, 90, 15, 131, 13, 201, 95, 96, 53, 194, 233, 7,
+			225, 140, 36, 103, 30, 69, 142, 8, 99, 37, 240, 21, 10, 23, 190, 6,
+			148, 247, 120, 234, 75, 0, 26, 197, 62, 94, 252, 219, 203, 117, 35,
+			11, 32, 57, 177, 33, 88, 237, 149, 56, 87, 174, 20, 125, 136, 171,
+			168, 68, 175, 74, 165, 71, 134, 139, 48, 27, 166, 77, 146, 158,
+			231, 83, 111, 229, 122, 60, 211, 133, 230, 220, 105, 92, 41, 55,
+			46, 245, 40, 244, 102, 143, 54, 65, 25, 63, 161, 1, 216, 80, 73,
+			209, 76, 132, 187, 208, 89, 18, 169, 200, 196, 135, 130, 116, 188,
+			159, 86, 164, 100, 109, 198, 173, 186, 3, 64, 52, 217, 226, 250,
+			124, 123, 5, 202, 38, 147, 118, 126, 255, 82, 85, 212, 207, 206,
+			59, 227, 47, 16, 58, 17, 182, 189, 28, 42, 223, 183, 170, 213, 119,
+			248, 152, 2, 44, 154, 163, 70, 221, 153, 101, 155, 167, 43, 172, 9,
+			129, 22, 39, 253, 19, 98, 108, 110, 79, 113, 224, 232, 178, 185,
+			112, 104, 218, 246, 97, 228, 251, 34, 242, 193, 238, 210, 144, 12,
+			191, 179, 162, 241, 81, 51, 145, 235, 249, 14, 239, 107, 49, 192,
+			214, 31, 181, 199, 106, 157, 184, 84, 204, 176, 115, 121, 50, 45,
+			127, 4, 150, 254, 138, 236, 205, 93, 222, 114, 67, 29, 24, 72, 243,
+			141, 128, 195, 78, 66, 215, 61, 156, 180
+	};
+
+	/**
+	 * Permutation table (doubled to avoid index wrapping)
+	 */
+	private static final int[] PERM = new int[512];
+
+	/**
+	 * Pre-computed gradient indices (PERM[i] % 12)
+	 */
+	private static final int[] PERM_MOD12 = new int[512];
+
+	/**
+	 * X & Y components of the 12 gradient directions
+	 */
+	private static final float[] GRAD_X = { 1, -1, 1, -1, 1, -1, 1, -1, 0,
+			0, 0, 0 };
+	private static final float[] GRAD_Y = { 1, 1, -1, -1, 0, 0, 0, 0, 1, -1,
+			1, -1 };
+
+	static {
+		for (int i = 0; i < 512; i++) {
+			PERM[i] = P[i & 255];
+			PERM_MOD12[i] = PERM[i] % 12;
+		}
+	}
+
+	private static int fastfloor(float x) {
+		return x > 0 ? (int) x : (int) x - 1;
+	}
+
+	/**
+	 * Computes 2D Simplex noise for the given coordinates.
+	 * 
+	 * @param xin
+	 * @param yin
+	 * @return noise value in the range -1 .. +1
+	 */
+	public static float noise(float xin, float yin) {
+		// skew input space to determine simplex cell
+		float s = (xin + yin) * F2;
+		int i = fastfloor(xin + s);
+		int j = fastfloor(yin + s);
+		float t = (i + j) * G2;
+		// distances from cell origin
+		float x0 = xin - (i - t);
+		float y0 = yin - (j - t);
+		// offsets for middle corner of simplex
+		int i1, j1;
+		if (x0 > y0) {
+			i1 = 1;
+			j1 = 0;
+		} else {
+			i1 = 0;
+			j1 = 1;
+		}
+		float x1 = x0 - i1 + G2;
+		float y1 = y0 - j1 + G2;
+		float x2 = x0 + G22;
+		float y2 = y0 + G22;
+		int ii = i & 255;
+		int jj = j & 255;
+		// sum contributions from the 3 corners
+		float n = 0;
+		float t0 = 0.5f - x0 * x0 - y0 * y0;
+		if (t0 > 0) {
+			int g = PERM_MOD12[ii + PERM[jj]];
+			t0 *= t0;
+			n += t0 * t0 * (GRAD_X[g] * x0 + GRAD_Y[g] * y0);
+		}
+		float t1 = 0.5f - x1 * x1 - y1 * y1;
+		if (t1 > 0) {
+			int g = PERM_MOD12[ii + i1 + PERM[jj + j1]];
+			t1 *= t1;
+			n += t1 * t1 * (GRAD_X[g] * x1 + GRAD_Y[g] * y1);
+		}
+		float t2 = 0.5f - x2 * x2 - y2 * y2;
+		if (t2 > 0) {
+			int g = PERM_MOD12[ii + 1 + PERM[jj + 1]];
+			t2 *= t2;
+			n += t2 * t2 * (GRAD_X[g] * x2 + GRAD_Y[g] * y2);
+		}
+		// scale result to -1 .. +1 interval
+		return 70 * n;
+	}
+
+	private FloatSimplexNoise() {
+	}
+}
@@ -0,0 +1,381 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.Arrays;
+import java.util.List;
+
+import toxi.geom.AABB;
+import toxi.geom.Polygon2D;
+import toxi.geom.Rect;
+import toxi.geom.Vec2D;
+import toxi.geom.Vec3D;
+
+/**
+ * Node/strut graph of the facade lattice. Neighbouring voronoi cells or
+ * delaunay triangles share their edges, so instead of storing each shape as
+ * a separate closed polygon, coincident shape vertices are welded into a
+ * single node and each undirected edge is only stored once. This roughly
+ * halves the number of points to be mapped & displaced as well as the
+ * number of segments to be voxelized.
+ * 
+ * All node attributes are stored in flat primitive arrays (structure of
+ * arrays), edges as pairs of node indices. Graphs derived from another one
+ * (e.g. mapped onto the spline or displaced) share the edges & relative
+ * positions (and, if displaced, the normals) with their original.
+ */
+public class LatticeGraph {
+
+	/**
+	 * Minimal open addressing hash map from long keys to int values (no
+	 * removal).
+	 */
+	private static class LongIntMap {
+
+		private long[] keys;
+		private int[] values;
+		private boolean[] isUsed;
+		private int size;
+
+		LongIntMap(int capacity) {
+			int n = 16;
+			while (n < capacity * 2) {
+				n <<= 1;
+			}
+			keys = new long[n];
+			values = new int[n];
+			isUsed = new boolean[n];
+		}
+
+		/**
+		 * @param key
+		 * @return value for key or -1, if not present
+		 */
+		int get(long key) {
+			int mask = keys.length - 1;
+			for (int i = hash(key) & mask; isUsed[i]; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
+			return -1;
+		}
+
+		private static int hash(long key) {
+			key *= 0x9e3779b97f4a7c15L;
+			return (int) (key ^ (key >>> 32));
+		}
+
+		/**
+		 * Adds the key with the given value, if not already present.
+		 * 
+		 * @param key
+		 * @param value
+		 * @return existing value for key or -1, if key has been added
+		 */
+		int putIfAbsent(long key, int value) {
+			if (size * 2 >= keys.length) {
+				rehash();
+			}
+			int mask = keys.length - 1;
+			int i = hash(key) & mask;
+			for (; isUsed[i]; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
+			keys[i] = key;
+			values[i] = value;
+			isUsed[i] = true;
+			size++;
+			return -1;
+		}
+
+		private void rehash() {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			boolean[] oldUsed = isUsed;
+			keys = new long[oldKeys.length * 2];
+			values = new int[oldKeys.length * 2];
+			isUsed = new boolean[oldKeys.length * 2];
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldUsed[i]) {
+					putIfAbsent(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Default max. distance (in pixels) between shape vertices to be welded
+	 */
+	public static final float DEFAULT_WELD_TOLERANCE = 0.01f;
+
+	/**
+	 * Welds the vertices of all given 2D shapes into a graph. Vertices are
+	 * quantised to a grid with the given tolerance as cell size and merged
+	 * with any existing node in the same or a neighbouring cell. Each
+	 * polygon edge (including the closing one) is added once, degenerate
+	 * edges are skipped. The node positions are stored in the x & y arrays
+	 * (z = 0, normals are zero) and the relative positions are computed from
+	 * the given bounds.
+	 * 
+	 * @param shapes
+	 *            closed 2D polygons
+	 * @param bounds
+	 *            bounds of the 2D space (used for relative positions)
+	 * @param tolerance
+	 *            weld distance
+	 * @return 2D graph
+	 */
+	public static LatticeGraph weld(List<Polygon2D> shapes, Rect bounds,
+			float tolerance) {
+		int numVertices = 0;
+		for (Polygon2D p : shapes) {
+			numVertices += p.vertices.size();
+		}
+		float[] nodeX = new float[numVertices];
+		float[] nodeY = new float[numVertices];
+		int[] edges = new int[numVertices * 2];
+		int numNodes = 0, numEdges = 0;
+		float invTolerance = 1f / tolerance;
+		LongIntMap nodeIndex = new LongIntMap(numVertices);
+		LongIntMap edgeIndex = new LongIntMap(numVertices);
+		int[] shapeNodes = new int[16];
+		for (Polygon2D p : shapes) {
+			int num = p.vertices.size();
+			if (shapeNodes.length < num) {
+				shapeNodes = new int[num];
+			}
+			for (int i = 0; i < num; i++) {
+				Vec2D v = p.vertices.get(i);
+				int qx = Math.round(v.x * invTolerance);
+				int qy = Math.round(v.y * invTolerance);
+				int id = -1;
+				// check neighbouring grid cells too, since close vertices
+				// might have been rounded into different cells
+				for (int dy = -1; dy <= 1 && id < 0; dy++) {
+					for (int dx = -1; dx <= 1 && id < 0; dx++) {
+						id = nodeIndex.get(getGridKey(qx + dx, qy + dy));
+					}
+				}
+				if (id < 0) {
+					id = numNodes++;
+					nodeX[id] = v.x;
+					nodeY[id] = v.y;
+					nodeIndex.putIfAbsent(getGridKey(qx, qy), id);
+				}
+				shapeNodes[i] = id;
+			}
+			for (int i = 0, prev = num - 1; i < num; prev = i, i++) {
+				int a = Math.min(shapeNodes[prev], shapeNodes[i]);
+				int b = Math.max(shapeNodes[prev], shapeNodes[i]);
+				if (a != b
+						&& edgeIndex.putIfAbsent(((long) a << 32) | b,
+								numEdges) < 0) {
+					edges[numEdges * 2] = a;
+					edges[numEdges * 2 + 1] = b;
+					numEdges++;
+				}
+			}
+		}
+		LatticeGraph graph = new LatticeGraph(numNodes,
+				Arrays.copyOf(edges, numEdges * 2));
+		float invWidth = 1f / bounds.width;
+		float invHeight = 1f / bounds.height;
+		for (int i = 0; i < numNodes; i++) {
+			graph.x[i] = nodeX[i];
+			graph.y[i] = nodeY[i];
+			graph.relX[i] = nodeX[i] * invWidth;
+			graph.relY[i] = nodeY[i] * invHeight;
+		}
+		return graph;
+	}
+
+	private static long getGridKey(int qx, int qy) {
+		return ((long) qx << 32) ^ (qy & 0xffffffffL);
+	}
+
+	/**
+	 * Number of nodes & unique edges
+	 */
+	public final int numNodes, numEdges;
+
+	/**
+	 * Node indices of all edges: edge <code>i</code> connects the nodes
+	 * <code>edges[i*2]</code> and <code>edges[i*2+1]</code>
+	 */
+	public final int[] edges;
+
+	/**
+	 * Node positions
+	 */
+	public final float[] x, y, z;
+
+	/**
+	 * Surface normals (unit vectors) of each node
+	 */
+	public final float[] normalX, normalY, normalZ;
+
+	/**
+	 * Relative (normalized) position of each node in the 2D space of the
+	 * particle system
+	 */
+	public final float[] relX, relY;
+
+	/**
+	 * Creates a new graph with the given number of nodes & edges. The node
+	 * attributes need to be filled in by the caller.
+	 * 
+	 * @param numNodes
+	 * @param edges
+	 *            node index pairs
+	 */
+	public LatticeGraph(int numNodes, int[] edges) {
+		this.numNodes = numNodes;
+		this.numEdges = edges.length / 2;
+		this.edges = edges;
+		x = new float[numNodes];
+		y = new float[numNodes];
+		z = new float[numNodes];
+		normalX = new float[numNodes];
+		normalY = new float[numNodes];
+		normalZ = new float[numNodes];
+		relX = new float[numNodes];
+		relY = new float[numNodes];
+	}
+
+	/**
+	 * Creates a copy of the given graph with new node positions, but shared
+	 * edges, relative positions & (optionally) normals.
+	 * 
+	 * @param graph
+	 * @param shareNormals
+	 */
+	private LatticeGraph(LatticeGraph graph, boolean shareNormals) {
+		numNodes = graph.numNodes;
+		numEdges = graph.numEdges;
+		edges = graph.edges;
+		x = new float[numNodes];
+		y = new float[numNodes];
+		z = new float[numNodes];
+		if (shareNormals) {
+			normalX = graph.normalX;
+			normalY = graph.normalY;
+			normalZ = graph.normalZ;
+		} else {
+			normalX = new float[numNodes];
+			normalY = new float[numNodes];
+			normalZ = new float[numNodes];
+		}
+		relX = graph.relX;
+		relY = graph.relY;
+	}
+
+	/**
+	 * Creates a displaced version of this graph. The node positions are still
+	 * uninitialized and need to be computed via
+	 * {@link #displace(LatticeGraph, float[], int, int)}.
+	 * 
+	 * @return displaced graph
+	 */
+	public LatticeGraph createDisplaced() {
+		return new LatticeGraph(this, true);
+	}
+
+	/**
+	 * Creates a graph with the same topology, but uninitialized node
+	 * positions & normals (e.g. to map a 2D graph into 3D).
+	 * 
+	 * @return new graph
+	 */
+	public LatticeGraph createMapped() {
+		return new LatticeGraph(this, false);
+	}
+
+	/**
+	 * Moves all nodes in the given index range along their normal by their
+	 * individual displacement amount and stores the resulting positions in
+	 * the target graph. Produces the same results as
+	 * {@link FacadePoint#getDisplaced(float)}.
+	 * 
+	 * @param target
+	 *            displaced graph created via {@link #createDisplaced()}
+	 * @param amounts
+	 *            displacement amount for each node
+	 * @param from
+	 *            start index
+	 * @param to
+	 *            end index (exclusive)
+	 */
+	public void displace(LatticeGraph target, float[] amounts, int from, int to) {
+		for (int i = from; i < to; i++) {
+			float nx = normalX[i];
+			float ny = normalY[i];
+			float nz = normalZ[i];
+			float mag = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+			if (mag > 0) {
+				mag = amounts[i] / mag;
+				nx *= mag;
+				ny *= mag;
+				nz *= mag;
+			}
+			target.x[i] = x[i] + nx;
+			target.y[i] = y[i] + ny;
+			target.z[i] = z[i] + nz;
+		}
+	}
+
+	/**
+	 * Computes the bounding box of all nodes. Like an initially empty
+	 * {@link AABB} grown to contain all points, the box always includes the
+	 * world origin.
+	 * 
+	 * @return bounding box
+	 */
+	public AABB getBounds() {
+		float minX = 0, minY = 0, minZ = 0;
+		float maxX = 0, maxY = 0, maxZ = 0;
+		for (int i = 0; i < numNodes; i++) {
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			minZ = Math.min(minZ, z[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+			maxZ = Math.max(maxZ, z[i]);
+		}
+		return AABB.fromMinMax(new Vec3D(minX, minY, minZ), new Vec3D(maxX,
+				maxY, maxZ));
+	}
+}
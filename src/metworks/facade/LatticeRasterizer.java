@@ -0,0 +1,346 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import toxi.geom.AABB;
+import toxi.geom.Vec3D;
+import toxi.math.ScaleMap;
+import toxi.volume.BrushMode;
+import toxi.volume.VolumetricBrush;
+import toxi.volume.VolumetricSpace;
+
+/**
+ * Multi-threaded replacement for sweeping a {@link toxi.volume.BoxBrush} along
+ * line segments via {@link toxi.volume.MeshLatticeBuilder#createLattice}.
+ * Uses the same coordinate mapping, sampling & brush footprint, but splits
+ * the work in two parallel phases:
+ * 
+ * <ol>
+ * <li>All segments are sampled at the given step distance and the sample
+ * points are converted into voxel grid coordinates.</li>
+ * <li>The volume is split into slabs along the X axis and each worker only
+ * stamps the brush into the voxels of its own slab. Since slabs don't
+ * overlap, no synchronization is needed when writing to the volume.</li>
+ * </ol>
+ * 
+ * The final voxel values only depend on the brush mode, which needs to be
+ * order independent (e.g. {@link VolumetricBrush#MODE_PEAK}) for the result
+ * to be identical to the single threaded version.
+ */
+public class LatticeRasterizer {
+
+	/**
+	 * Number of edges sampled by a single task in phase 1
+	 */
+	private static final int EDGE_CHUNK_SIZE = 1024;
+
+	/**
+	 * Growable buffer of sample point coordinates (in voxel space)
+	 */
+	private static class SampleBuffer {
+
+		float[] coords = new float[3 * 1024];
+		int size;
+
+		void add(float x, float y, float z) {
+			if (size + 3 > coords.length) {
+				float[] c = new float[coords.length * 2];
+				System.arraycopy(coords, 0, c, 0, size);
+				coords = c;
+			}
+			coords[size++] = x;
+			coords[size++] = y;
+			coords[size++] = z;
+		}
+	}
+
+	/**
+	 * Target volume
+	 */
+	private final VolumetricSpace volume;
+
+	/**
+	 * Mapping functions from world space into voxel space
+	 */
+	private final ScaleMap toVoxelX, toVoxelY, toVoxelZ;
+
+	/**
+	 * Brush footprint (in voxels) as computed by
+	 * {@link toxi.volume.BoxBrush#setSize(float)}
+	 */
+	private int cellRadiusX, cellRadiusY, cellRadiusZ;
+
+	/**
+	 * Sampling distance along each segment (in world units)
+	 */
+	private float drawStep = 1;
+
+	/**
+	 * Brush density value
+	 */
+	private float density = 1;
+
+	/**
+	 * Brush mode used to combine new density with existing voxel values
+	 */
+	private BrushMode mode = VolumetricBrush.MODE_PEAK;
+
+	/**
+	 * Creates a new rasterizer for the given volume. Like the
+	 * MeshLatticeBuilder, the input bounds are mapped to the voxel range
+	 * 1...res-2 along each axis.
+	 * 
+	 * @param volume
+	 *            target volume
+	 * @param inputBounds
+	 *            world space bounding box
+	 */
+	public LatticeRasterizer(VolumetricSpace volume, AABB inputBounds) {
+		this.volume = volume;
+		Vec3D min = inputBounds.getMin();
+		Vec3D max = inputBounds.getMax();
+		toVoxelX = new ScaleMap(min.x, max.x, 1, volume.resX - 2);
+		toVoxelY = new ScaleMap(min.y, max.y, 1, volume.resY - 2);
+		toVoxelZ = new ScaleMap(min.z, max.z, 1, volume.resZ - 2);
+		setBrushSize(0.33f);
+	}
+
+	/**
+	 * Samples a single line segment at the current draw step and adds the
+	 * sample points (converted into voxel space) to the buffer. Produces the
+	 * same points as {@link toxi.geom.Line3D#splitIntoSegments}, but without allocating
+	 * any vectors.
+	 * 
+	 * @param buf
+	 * @param ax
+	 * @param ay
+	 * @param az
+	 * @param bx
+	 * @param by
+	 * @param bz
+	 */
+	private void addSegmentSamples(SampleBuffer buf, float ax, float ay,
+			float az, float bx, float by, float bz) {
+		addSample(buf, ax, ay, az);
+		float dx = bx - ax;
+		float dy = by - ay;
+		float dz = bz - az;
+		float dist = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (dist > drawStep) {
+			// limit step vector to draw step length
+			float magSq = dx * dx + dy * dy + dz * dz;
+			if (magSq > drawStep * drawStep) {
+				float mag = (float) Math.sqrt(magSq);
+				if (mag > 0) {
+					mag = 1f / mag;
+					dx *= mag;
+					dy *= mag;
+					dz *= mag;
+				}
+				dx *= drawStep;
+				dy *= drawStep;
+				dz *= drawStep;
+			}
+			float px = ax, py = ay, pz = az;
+			while (dist > drawStep) {
+				px += dx;
+				py += dy;
+				pz += dz;
+				addSample(buf, px, py, pz);
+				dist -= drawStep;
+			}
+		}
+		addSample(buf, bx, by, bz);
+	}
+
+	private void addSample(SampleBuffer buf, float x, float y, float z) {
+		buf.add((float) toVoxelX.getClippedValueFor(x),
+				(float) toVoxelY.getClippedValueFor(y),
+				(float) toVoxelZ.getClippedValueFor(z));
+	}
+
+	/**
+	 * Converts all edges in the given index range into voxel space sample
+	 * points.
+	 * 
+	 * @param lattice
+	 * @param from
+	 * @param to
+	 * @return sample points
+	 */
+	private SampleBuffer computeSamples(LatticeGraph lattice, int from, int to) {
+		SampleBuffer buf = new SampleBuffer();
+		final float[] x = lattice.x, y = lattice.y, z = lattice.z;
+		final int[] edges = lattice.edges;
+		for (int i = from; i < to; i++) {
+			int a = edges[i * 2];
+			int b = edges[i * 2 + 1];
+			addSegmentSamples(buf, x[a], y[a], z[a], x[b], y[b], z[b]);
+		}
+		return buf;
+	}
+
+	/**
+	 * @return target volume
+	 */
+	public VolumetricSpace getVolume() {
+		return volume;
+	}
+
+	/**
+	 * Samples all edges of the given lattice graph and stamps the brush at
+	 * each sample position into the volume.
+	 * 
+	 * @param lattice
+	 */
+	public void rasterize(final LatticeGraph lattice) {
+		// phase 1: compute sample points
+		int numChunks = ParallelTasks.getNumChunks(lattice.numEdges,
+				EDGE_CHUNK_SIZE);
+		List<Callable<SampleBuffer>> sampleTasks = new ArrayList<Callable<SampleBuffer>>(
+				numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			final int from = i * EDGE_CHUNK_SIZE;
+			final int to = Math.min(from + EDGE_CHUNK_SIZE, lattice.numEdges);
+			sampleTasks.add(new Callable<SampleBuffer>() {
+
+				@Override
+				public SampleBuffer call() {
+					return computeSamples(lattice, from, to);
+				}
+			});
+		}
+		final List<SampleBuffer> samples = ParallelTasks.invokeAll(sampleTasks);
+		// phase 2: stamp samples into disjoint X slabs
+		int numSlabs = Math.min(ParallelTasks.NUM_THREADS * 2, volume.resX);
+		List<Callable<Void>> slabTasks = new ArrayList<Callable<Void>>(numSlabs);
+		for (int i = 0; i < numSlabs; i++) {
+			final int slabMin = i * volume.resX / numSlabs;
+			final int slabMax = (i + 1) * volume.resX / numSlabs;
+			slabTasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					for (SampleBuffer buf : samples) {
+						stampSlab(buf, slabMin, slabMax);
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(slabTasks);
+	}
+
+	/**
+	 * Sets the brush size (in world units) and computes the resulting
+	 * footprint in voxels (same logic as
+	 * {@link toxi.volume.BoxBrush#setSize(float)}).
+	 * 
+	 * @param size
+	 */
+	public void setBrushSize(float size) {
+		float radius = size * 0.5f;
+		cellRadiusX = (int) (radius / volume.scale.x * volume.resX + 1);
+		cellRadiusY = (int) (radius / volume.scale.y * volume.resY + 1);
+		cellRadiusZ = (int) (radius / volume.scale.z * volume.resZ + 1);
+	}
+
+	/**
+	 * Sets the brush density value.
+	 * 
+	 * @param density
+	 */
+	public void setDensity(float density) {
+		this.density = density;
+	}
+
+	/**
+	 * Sets the sampling distance along each segment (in world units).
+	 * 
+	 * @param step
+	 */
+	public void setDrawStep(float step) {
+		drawStep = step;
+	}
+
+	/**
+	 * Sets the brush mode. Only order independent modes (e.g. PEAK) will
+	 * produce deterministic results.
+	 * 
+	 * @param mode
+	 */
+	public void setMode(BrushMode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Stamps the brush at all sample points in the buffer, but only updates
+	 * voxels with an X coordinate in the range slabMin...slabMax-1.
+	 * 
+	 * @param buf
+	 * @param slabMin
+	 * @param slabMax
+	 */
+	private void stampSlab(SampleBuffer buf, int slabMin, int slabMax) {
+		final float[] coords = buf.coords;
+		final int resX = volume.resX;
+		final int sliceRes = volume.sliceRes;
+		for (int i = 0; i < buf.size; i += 3) {
+			float cx = coords[i];
+			int minX = Math.max(Math.round(cx - cellRadiusX), slabMin);
+			int maxX = Math.min(Math.round(cx + cellRadiusX), slabMax);
+			if (minX >= maxX) {
+				continue;
+			}
+			float cy = coords[i + 1];
+			float cz = coords[i + 2];
+			int minY = Math.max(Math.round(cy - cellRadiusY), 0);
+			int maxY = Math.min(Math.round(cy + cellRadiusY), volume.resY);
+			int minZ = Math.max(Math.round(cz - cellRadiusZ), 0);
+			int maxZ = Math.min(Math.round(cz + cellRadiusZ), volume.resZ);
+			for (int z = minZ; z < maxZ; z++) {
+				for (int y = minY; y < maxY; y++) {
+					int idx = y * resX + z * sliceRes + minX;
+					for (int x = minX; x < maxX; x++, idx++) {
+						volume.setVoxelAt(idx,
+								mode.apply(volume.getVoxelAt(idx), density));
+					}
+				}
+			}
+		}
+	}
+}
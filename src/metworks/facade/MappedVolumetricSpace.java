@@ -0,0 +1,273 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package metworks.facade;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import toxi.geom.Vec3D;
+import toxi.volume.VolumetricSpace;
+
+/**
+ * Volumetric space implementation storing its voxels outside the Java heap in
+ * a memory mapped file, so that the voxel resolution isn't limited by the max.
+ * heap size and voxel data doesn't add to garbage collection pauses. The
+ * operating system pages voxel data in & out as needed, which makes it
+ * possible to process volumes larger than the available physical memory.
+ * 
+ * Voxels are stored in the same order as indexed by
+ * {@link VolumetricSpace#getIndexFor(int, int, int)}, split into several mapped
+ * buffers of whole Z slices (a single buffer is limited to 2GB). The file is
+ * created as sparse file, so regions which are never written to (i.e. empty
+ * space) take up neither memory nor disk space. Z slices which have never been
+ * written to (with a non-zero value) are tracked and can be skipped by
+ * consumers, e.g. {@link ParallelIsoSurface}.
+ * 
+ * Like the {@link BrickedVolumetricSpace}, multiple threads can write to the
+ * volume concurrently as long as they don't update the same voxels. Note that
+ * the total number of voxels is still limited to 2^31-1, since all volumes are
+ * indexed with ints.
+ */
+public class MappedVolumetricSpace extends VolumetricSpace implements
+		Closeable {
+
+	/**
+	 * Max. size of a single mapped buffer in bytes
+	 */
+	private static final int MAX_BUFFER_SIZE = 1 << 30;
+
+	/**
+	 * Number of voxels & Z slices per mapped buffer
+	 */
+	private final int bufferVoxels, bufferSlices;
+
+	private final FloatBuffer[] buffers;
+
+	/**
+	 * Flags for each Z slice indicating if a non-zero value has been written
+	 */
+	private final boolean[] occupiedSlices;
+
+	private final File file;
+	private final RandomAccessFile raf;
+
+	/**
+	 * True, if the file is deleted when the volume is closed
+	 */
+	private final boolean isTempFile;
+
+	/**
+	 * Creates a new empty volume of the given physical size & resolution,
+	 * backed by a temporary file which is deleted when the volume is closed.
+	 * 
+	 * @param scale
+	 * @param resX
+	 * @param resY
+	 * @param resZ
+	 * @throws IOException
+	 *             if the file can't be created or mapped
+	 */
+	public MappedVolumetricSpace(Vec3D scale, int resX, int resY, int resZ)
+			throws IOException {
+		this(scale, resX, resY, resZ, null);
+	}
+
+	/**
+	 * Creates a new empty volume of the given physical size & resolution,
+	 * backed by the given file. Any existing file contents are discarded.
+	 * 
+	 * @param scale
+	 * @param resX
+	 * @param resY
+	 * @param resZ
+	 * @param file
+	 *            backing file or null to use a temporary file
+	 * @throws IOException
+	 *             if the file can't be created or mapped
+	 */
+	public MappedVolumetricSpace(Vec3D scale, int resX, int resY, int resZ,
+			File file) throws IOException {
+		super(scale, resX, resY, resZ);
+		if ((long) resX * resY * resZ > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("volume resolution too large: "
+					+ resX + "x" + resY + "x" + resZ);
+		}
+		isTempFile = (file == null);
+		if (isTempFile) {
+			file = File.createTempFile("facade-volume", ".raw");
+			file.deleteOnExit();
+		}
+		this.file = file;
+		occupiedSlices = new boolean[resZ];
+		bufferSlices = Math.max(MAX_BUFFER_SIZE / 4 / sliceRes, 1);
+		bufferVoxels = bufferSlices * sliceRes;
+		buffers = new FloatBuffer[(resZ + bufferSlices - 1) / bufferSlices];
+		raf = new RandomAccessFile(file, "rw");
+		try {
+			// truncate & re-extend to create a sparse, zeroed file
+			raf.setLength(0);
+			raf.setLength((long) numCells * 4);
+			FileChannel channel = raf.getChannel();
+			for (int i = 0; i < buffers.length; i++) {
+				long offset = (long) i * bufferVoxels;
+				long size = Math.min(bufferVoxels, numCells - offset);
+				buffers[i] = channel
+						.map(FileChannel.MapMode.READ_WRITE, offset * 4,
+								size * 4).order(ByteOrder.nativeOrder())
+						.asFloatBuffer();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Sets all voxels to zero. Only touches slices which have been written to.
+	 */
+	@Override
+	public void clear() {
+		for (int z = 0; z < resZ; z++) {
+			if (occupiedSlices[z]) {
+				FloatBuffer buf = buffers[z / bufferSlices];
+				int offset = (z % bufferSlices) * sliceRes;
+				for (int i = 0; i < sliceRes; i++) {
+					buf.put(offset + i, 0);
+				}
+				occupiedSlices[z] = false;
+			}
+		}
+	}
+
+	/**
+	 * Sets all voxels on the sides of the volume to zero. Only touches slices
+	 * which have been written to.
+	 */
+	@Override
+	public void closeSides() {
+		for (int z = 0; z < resZ; z++) {
+			if (!occupiedSlices[z]) {
+				continue;
+			}
+			int sliceIndex = z * sliceRes;
+			boolean isSideZ = (z == 0 || z == resZ1);
+			for (int y = 0; y < resY; y++) {
+				int idx = sliceIndex + y * resX;
+				if (isSideZ || y == 0 || y == resY1) {
+					for (int x = 0; x < resX; x++) {
+						setVoxelAt(idx + x, 0);
+					}
+				} else {
+					setVoxelAt(idx, 0);
+					setVoxelAt(idx + resX1, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the backing file (and deletes it, if it's a temporary file). The
+	 * volume must not be used afterwards.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			raf.close();
+		} finally {
+			if (isTempFile) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * @return backing file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public final float getVoxelAt(int index) {
+		return buffers[index / bufferVoxels].get(index % bufferVoxels);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return voxel value at the given grid position
+	 */
+	public final float getVoxelAt(int x, int y, int z) {
+		return getVoxelAt(x + y * resX + z * sliceRes);
+	}
+
+	/**
+	 * Checks if any voxel in the given Z slice might be non-zero.
+	 * 
+	 * @param z
+	 * @return true, if a non-zero value has been written into the slice
+	 */
+	public final boolean isSliceOccupied(int z) {
+		return occupiedSlices[z];
+	}
+
+	/**
+	 * Sets the voxel at the given index. Zero values written into unoccupied
+	 * slices are ignored (they're zero already), which avoids touching any
+	 * pages of empty regions.
+	 */
+	@Override
+	public final void setVoxelAt(int index, float value) {
+		if (index >= 0 && index < numCells) {
+			int z = index / sliceRes;
+			if (value != 0) {
+				occupiedSlices[z] = true;
+			} else if (!occupiedSlices[z]) {
+				return;
+			}
+			buffers[index / bufferVoxels].put(index % bufferVoxels, value);
+		}
+	}
+
+	@Override
+	public final void setVoxelAt(int x, int y, int z, float value) {
+		setVoxelAt(x + y * resX + z * sliceRes, value);
+	}
+}
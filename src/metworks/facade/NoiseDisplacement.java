@@ -32,12 +32,14 @@
  */
 package metworks.facade;
 
+import java.util.Arrays;
+
 import toxi.math.MathUtils;
-import toxi.math.noise.SimplexNoise;
 
 /**
  * Concrete implementation of a {@link DisplacementStrategy} using Ken Perlin's
- * Simplex noise as driver for spatial displacement.
+ * Simplex noise as driver for spatial displacement. Uses the single precision
+ * {@link FloatSimplexNoise} to keep the batch computation tight.
  */
 public class NoiseDisplacement implements DisplacementStrategy {
 
@@ -45,6 +47,55 @@ public class NoiseDisplacement implements DisplacementStrategy {
 
 	private float displace;
 
+	/**
+	 * Cached absolute noise values for each point of the coordinate arrays
+	 * last given to
+	 * {@link #computeDisplacements(float[], float[], float[], float[], float[], float[], float[], int, int)}
+	 */
+	private float[] noiseCache;
+	private float[] cachedX, cachedY;
+
+	/**
+	 * Batch version of {@link #getDisplacementForPoint(FacadePoint)}, only
+	 * using the x & y coordinates of the points. The (unscaled) noise value of
+	 * each point is cached, so that as long as the same coordinate arrays are
+	 * passed in, only changing the displacement strength costs a single
+	 * multiplication per point. Callers need to pass new arrays (or call
+	 * {@link #invalidateCache()}) if the point coordinates change.
+	 */
+	@Override
+	public void computeDisplacements(float[] x, float[] y, float[] z,
+			float[] nx, float[] ny, float[] nz, float[] displacements,
+			int from, int to) {
+		final float[] cache = getNoiseCache(x, y);
+		// |noise * displace| == |noise| * |displace|
+		final float amp = MathUtils.abs(displace);
+		for (int i = from; i < to; i++) {
+			float n = cache[i];
+			// NaN marks values not yet computed
+			if (n != n) {
+				n = MathUtils.abs(FloatSimplexNoise.noise(x[i] * NOISE_SCALE,
+						y[i] * NOISE_SCALE));
+				cache[i] = n;
+			}
+			displacements[i] = n * amp;
+		}
+	}
+
+	/**
+	 * Returns the noise cache for the given coordinate arrays, creating a new
+	 * (empty) one if the arrays are different from the ones used previously.
+	 */
+	private synchronized float[] getNoiseCache(float[] x, float[] y) {
+		if (x != cachedX || y != cachedY || noiseCache == null) {
+			noiseCache = new float[x.length];
+			Arrays.fill(noiseCache, Float.NaN);
+			cachedX = x;
+			cachedY = y;
+		}
+		return noiseCache;
+	}
+
 	/**
 	 * Uses the point's x & y position to compute a displacement amount using 2d
 	 * Simplex noise.
@@ -56,8 +107,9 @@ public class NoiseDisplacement implements DisplacementStrategy {
 		// compute noise value at the point's position scaled with the
 		// NOISE_SCALE factor
 		// in order to create more smooth value changes between points
-		float amp = MathUtils.abs((float) SimplexNoise.noise(p.x * NOISE_SCALE,
-				p.y * NOISE_SCALE) * displace);
+		float amp = MathUtils.abs(FloatSimplexNoise.noise(p.x * NOISE_SCALE, p.y
+				* NOISE_SCALE)
+				* displace);
 		return amp;
 	}
 
@@ -66,6 +118,13 @@ public class NoiseDisplacement implements DisplacementStrategy {
 		return displace;
 	}
 
+	/**
+	 * Discards all cached noise values.
+	 */
+	public synchronized void invalidateCache() {
+		noiseCache = null;
+	}
+
 	@Override
 	public void setDisplacementStrength(float displace) {
 		this.displace = displace;
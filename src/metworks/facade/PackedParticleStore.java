@@ -0,0 +1,303 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.List;
+
+import toxi.geom.Rect;
+import toxi.geom.Vec2D;
+import toxi.physics2d.behaviors.AttractionBehavior2D;
+
+/**
+ * Alternative particle storage for the {@link ParticleSystem} using flat
+ * primitive arrays (structure of arrays) instead of one VerletParticle2D
+ * object per particle. Also provides an allocation free Verlet integrator
+ * which replicates the behaviour of VerletPhysics2D: repulsion between
+ * particles (computed via {@link SpatialHashSeparation}), attraction towards
+ * the attractors, drag, integration and world bounds constraint.
+ */
+public class PackedParticleStore {
+
+	/**
+	 * Initial capacity of the arrays
+	 */
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	/**
+	 * Current & previous positions
+	 */
+	private float[] x, y, prevX, prevY;
+
+	/**
+	 * Accumulated forces for current time step
+	 */
+	private float[] forceX, forceY;
+
+	/**
+	 * Particle weights
+	 */
+	private float[] weight;
+
+	/**
+	 * Number of particles currently stored
+	 */
+	private int numParticles;
+
+	/**
+	 * World bounds. No particle can leave this rect.
+	 */
+	private final Rect bounds;
+
+	/**
+	 * Drag force (0.0 = no drag)
+	 */
+	private float drag;
+
+	/**
+	 * Creates a new empty store with the given world bounds.
+	 * 
+	 * @param bounds
+	 */
+	public PackedParticleStore(Rect bounds) {
+		this.bounds = bounds;
+		allocate(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Adds a new particle with zero velocity and unit weight at the given
+	 * position.
+	 * 
+	 * @param pos
+	 */
+	public void add(Vec2D pos) {
+		if (numParticles == x.length) {
+			allocate(x.length * 2);
+		}
+		int i = numParticles++;
+		x[i] = prevX[i] = pos.x;
+		y[i] = prevY[i] = pos.y;
+		forceX[i] = forceY[i] = 0;
+		weight[i] = 1;
+	}
+
+	/**
+	 * Grows all arrays to the given capacity, retaining existing contents.
+	 * 
+	 * @param capacity
+	 */
+	private void allocate(int capacity) {
+		x = grow(x, capacity);
+		y = grow(y, capacity);
+		prevX = grow(prevX, capacity);
+		prevY = grow(prevY, capacity);
+		forceX = grow(forceX, capacity);
+		forceY = grow(forceY, capacity);
+		weight = grow(weight, capacity);
+	}
+
+	/**
+	 * Applies the attraction forces of all given attractors to the particles
+	 * in the given index range. Uses the same force falloff as
+	 * {@link AttractionBehavior2D}.
+	 * 
+	 * @param from
+	 *            first particle index (inclusive)
+	 * @param to
+	 *            last particle index (exclusive)
+	 * @param attractors
+	 * @param timeStep
+	 */
+	public void applyAttractors(int from, int to,
+			List<AttractionBehavior2D> attractors, float timeStep) {
+		for (int k = 0, numA = attractors.size(); k < numA; k++) {
+			AttractionBehavior2D a = attractors.get(k);
+			Vec2D pos = a.getAttractor();
+			float ax = pos.x;
+			float ay = pos.y;
+			float r = a.getRadius();
+			float radiusSquared = r * r;
+			float strength = a.getStrength() * timeStep;
+			for (int i = from; i < to; i++) {
+				float dx = ax - x[i];
+				float dy = ay - y[i];
+				float distSq = dx * dx + dy * dy;
+				if (distSq < radiusSquared && distSq > 0) {
+					float f = (1 - distSq / radiusSquared) * strength
+							/ (float) Math.sqrt(distSq);
+					forceX[i] += dx * f;
+					forceY[i] += dy * f;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all particles.
+	 */
+	public void clear() {
+		numParticles = 0;
+	}
+
+	/**
+	 * @return drag force
+	 */
+	public float getDrag() {
+		return drag;
+	}
+
+	/**
+	 * @return number of particles
+	 */
+	public int getNumParticles() {
+		return numParticles;
+	}
+
+	/**
+	 * Direct access to the X coordinates. Only the first
+	 * {@link #getNumParticles()} entries are valid. The array might be
+	 * replaced when particles are added.
+	 * 
+	 * @return x coordinate array
+	 */
+	public float[] getX() {
+		return x;
+	}
+
+	/**
+	 * Direct access to the Y coordinates. Only the first
+	 * {@link #getNumParticles()} entries are valid. The array might be
+	 * replaced when particles are added.
+	 * 
+	 * @return y coordinate array
+	 */
+	public float[] getY() {
+		return y;
+	}
+
+	/**
+	 * Copies an array into a new one of the given size.
+	 * 
+	 * @param src
+	 *            source array (can be null)
+	 * @param capacity
+	 * @return new array
+	 */
+	private static float[] grow(float[] src, int capacity) {
+		float[] dest = new float[capacity];
+		if (src != null) {
+			System.arraycopy(src, 0, dest, 0, Math.min(src.length, capacity));
+		}
+		return dest;
+	}
+
+	/**
+	 * Moves the particles in the given index range based on their current
+	 * velocity and accumulated forces, then applies drag and constrains their
+	 * positions to the world bounds. Also resets the force accumulators.
+	 * 
+	 * @param from
+	 *            first particle index (inclusive)
+	 * @param to
+	 *            last particle index (exclusive)
+	 */
+	public void integrate(int from, int to) {
+		final float minX = bounds.x;
+		final float minY = bounds.y;
+		final float maxX = bounds.x + bounds.width;
+		final float maxY = bounds.y + bounds.height;
+		for (int i = from; i < to; i++) {
+			float px = x[i];
+			float py = y[i];
+			// apply drag by scaling velocity (moving previous pos closer)
+			float ox = prevX[i] + (px - prevX[i]) * drag;
+			float oy = prevY[i] + (py - prevY[i]) * drag;
+			// verlet integration
+			float w = weight[i];
+			float nx = px + (px - ox) + forceX[i] * w;
+			float ny = py + (py - oy) + forceY[i] * w;
+			prevX[i] = px;
+			prevY[i] = py;
+			x[i] = nx < minX ? minX : (nx > maxX ? maxX : nx);
+			y[i] = ny < minY ? minY : (ny > maxY ? maxY : ny);
+			forceX[i] = 0;
+			forceY[i] = 0;
+		}
+	}
+
+	/**
+	 * Sets the drag force (0.0 = no drag, 1.0 = full stop).
+	 * 
+	 * @param drag
+	 */
+	public void setDrag(float drag) {
+		this.drag = drag;
+	}
+
+	/**
+	 * Updates all particles for a single time step (on the current thread).
+	 * 
+	 * @param separation
+	 *            particle repulsion
+	 * @param attractors
+	 *            list of attractors
+	 * @param timeStep
+	 */
+	public void update(SpatialHashSeparation separation,
+			List<AttractionBehavior2D> attractors, float timeStep) {
+		separation.build(x, y, numParticles);
+		update(0, numParticles, separation, attractors, timeStep);
+	}
+
+	/**
+	 * Computes forces for and integrates the particles in the given index
+	 * range. {@link SpatialHashSeparation#build(float[], float[], int)} must
+	 * have been called for the current particle positions beforehand. Can be
+	 * called concurrently for disjoint ranges.
+	 * 
+	 * @param from
+	 *            first particle index (inclusive)
+	 * @param to
+	 *            last particle index (exclusive)
+	 * @param separation
+	 *            particle repulsion
+	 * @param attractors
+	 *            list of attractors
+	 * @param timeStep
+	 */
+	public void update(int from, int to, SpatialHashSeparation separation,
+			List<AttractionBehavior2D> attractors, float timeStep) {
+		separation.computeForces(from, to, timeStep, forceX, forceY);
+		applyAttractors(from, to, attractors, timeStep);
+		integrate(from, to);
+	}
+}
@@ -0,0 +1,454 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package metworks.facade;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import toxi.geom.Vec3D;
+import toxi.geom.mesh.Mesh3D;
+import toxi.geom.mesh.TriangleMesh;
+import toxi.math.MathUtils;
+import toxi.volume.IsoSurface;
+import toxi.volume.VolumetricSpace;
+
+/**
+ * Multi-threaded marching cubes implementation producing exactly the same
+ * mesh as {@link toxi.volume.HashIsoSurface}. The volume is split into slabs
+ * along the Z axis, which are polygonized in parallel. Each slab also computes
+ * the edge vertices of the first slice of the next slab, using the same
+ * floating point operations as its neighbour. Vertices on slab boundaries are
+ * therefore bitwise identical and get welded when the faces are added to the
+ * target mesh (which happens in slab order on the calling thread), so the
+ * resulting mesh is watertight and has the same face order as the single
+ * threaded version.
+ * 
+ * Instead of building a mesh, triangles can also be streamed into a
+ * {@link TriangleConsumer} via {@link #computeSurface(float, TriangleConsumer)}.
+ * Slabs are processed in batches, so only the triangles of the current batch
+ * are kept in memory.
+ * 
+ * For {@link BrickedVolumetricSpace}s, cells only touching unallocated bricks
+ * are skipped without reading any voxels, since all their corners are known to
+ * be zero (empty). Likewise, for {@link MappedVolumetricSpace}s, slices between
+ * two unoccupied voxel slices are skipped, so empty regions of the backing
+ * file are never paged in.
+ */
+public class ParallelIsoSurface implements IsoSurface {
+
+	/**
+	 * Minimum number of cell slices processed by a single task
+	 */
+	private static final int MIN_SLAB_DEPTH = 4;
+
+	/**
+	 * Maximum number of cell slices processed by a single task. Together with
+	 * the batch size this limits the number of triangles buffered at any time
+	 */
+	private static final int MAX_SLAB_DEPTH = 16;
+
+	/**
+	 * Number of slabs created per worker thread (to balance uneven workloads)
+	 */
+	private static final int SLABS_PER_THREAD = 2;
+
+	/**
+	 * Polygonizes a range of cell slices and collects the resulting triangles
+	 * as vertex triplets.
+	 */
+	private class SlabTask implements Callable<List<Vec3D>> {
+
+		private final int minZ, maxZ;
+		private final float iso;
+
+		/**
+		 * Cell configurations of the current & previous slice
+		 */
+		private int[] cellIndices, prevCellIndices;
+
+		/**
+		 * Edge vertices of the current & previous slice, indexed by
+		 * (x + y * resX) * 3 + edge direction
+		 */
+		private HashMap<Integer, Vec3D> vertices, prevVertices;
+
+		private final List<Vec3D> faces = new ArrayList<Vec3D>();
+
+		/**
+		 * Flags for each brick column of the current row, indicating if any
+		 * of the bricks touched by the row's cells is allocated (only used for
+		 * bricked volumes)
+		 */
+		private boolean[] occupiedBricks;
+
+		SlabTask(int minZ, int maxZ, float iso) {
+			this.minZ = minZ;
+			this.maxZ = maxZ;
+			this.iso = iso;
+		}
+
+		@Override
+		public List<Vec3D> call() {
+			cellIndices = new int[volume.sliceRes];
+			prevCellIndices = new int[volume.sliceRes];
+			vertices = new HashMap<Integer, Vec3D>();
+			prevVertices = new HashMap<Integer, Vec3D>();
+			if (bricks != null) {
+				occupiedBricks = new boolean[bricks.bricksX];
+			}
+			int lastZ = Math.min(maxZ, volume.resZ1 - 1);
+			for (int z = minZ; z <= lastZ; z++) {
+				computeSlice(z);
+				if (z > minZ) {
+					createFacesForSlice();
+				}
+				swapSlices();
+			}
+			if (maxZ == volume.resZ1) {
+				// no vertices exist beyond the last slice
+				createFacesForSlice();
+			}
+			return faces;
+		}
+
+		/**
+		 * Computes the cell configurations & edge vertices of the given slice.
+		 * 
+		 * @param z
+		 *            slice index
+		 */
+		private void computeSlice(int z) {
+			final VolumetricSpace v = volume;
+			final int resX = v.resX;
+			final int sliceRes = v.sliceRes;
+			final int sliceIndex = z * sliceRes;
+			final float offZ = offsetZ[z];
+			final float posZ = z * cellSize.z + centreOffset.z;
+			if (mapped != null && !mapped.isSliceOccupied(z)
+					&& !mapped.isSliceOccupied(z + 1)) {
+				// slice only touches empty voxel slices: all cells are empty
+				Arrays.fill(cellIndices, 0);
+				return;
+			}
+			for (int y = 0; y < v.resY1; y++) {
+				final float offY = offsetY[y];
+				final float posY = y * cellSize.y + centreOffset.y;
+				int cacheIndex = y * resX;
+				int offset = sliceIndex + cacheIndex;
+				if (bricks != null && !findOccupiedBricks(y, z)) {
+					// row only touches unallocated bricks: all cells are empty
+					Arrays.fill(cellIndices, cacheIndex, cacheIndex + v.resX1, 0);
+					continue;
+				}
+				for (int x = 0; x < v.resX1; x++, offset++, cacheIndex++) {
+					if (bricks != null
+							&& !occupiedBricks[x >> BrickedVolumetricSpace.BRICK_BITS]
+							&& !occupiedBricks[(x + 1) >> BrickedVolumetricSpace.BRICK_BITS]) {
+						cellIndices[cacheIndex] = 0;
+						continue;
+					}
+					int cellIndex = getCellIndex(offset, iso);
+					cellIndices[cacheIndex] = cellIndex;
+					if (cellIndex > 0 && cellIndex < 255) {
+						int edgeFlags = getEdgesToCompute(cellIndex);
+						if (edgeFlags > 0) {
+							float offsetData = v.getVoxelAt(offset);
+							float isoDiff = iso - offsetData;
+							int key = cacheIndex * 3;
+							if ((edgeFlags & 1) > 0) {
+								float t = isoDiff
+										/ (v.getVoxelAt(offset + 1) - offsetData);
+								vertices.put(key, new Vec3D(offsetX[x] + t
+										* cellSize.x, posY, posZ));
+							}
+							if ((edgeFlags & 2) > 0) {
+								float t = isoDiff
+										/ (v.getVoxelAt(offset + resX) - offsetData);
+								vertices.put(key + 1, new Vec3D(x * cellSize.x
+										+ centreOffset.x, offY + t * cellSize.y,
+										posZ));
+							}
+							if ((edgeFlags & 4) > 0) {
+								float t = isoDiff
+										/ (v.getVoxelAt(offset + sliceRes) - offsetData);
+								vertices.put(key + 2, new Vec3D(x * cellSize.x
+										+ centreOffset.x, posY, offZ + t
+										* cellSize.z));
+							}
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Creates the triangles for all cells of the previous slice (using the
+		 * edge vertices of the previous & current slices).
+		 */
+		private void createFacesForSlice() {
+			final int resX = volume.resX;
+			for (int y = 0; y < volume.resY1; y++) {
+				int cacheIndex = y * resX;
+				for (int x = 0; x < volume.resX1; x++, cacheIndex++) {
+					int cellIndex = prevCellIndices[cacheIndex];
+					if (cellIndex > 0 && cellIndex < 255) {
+						int[] triangles = MarchingCubesTables.CELL_TRIANGLES[cellIndex];
+						for (int i = 0; triangles[i] != -1; i += 3) {
+							Vec3D va = getEdgeVertex(x, y, triangles[i + 1]);
+							Vec3D vb = getEdgeVertex(x, y, triangles[i + 2]);
+							Vec3D vc = getEdgeVertex(x, y, triangles[i]);
+							if (va != null && vb != null && vc != null) {
+								faces.add(va);
+								faces.add(vb);
+								faces.add(vc);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Updates the brick occupancy flags for the cells in the given row.
+		 * 
+		 * @param y
+		 * @param z
+		 * @return true, if any brick is occupied
+		 */
+		private boolean findOccupiedBricks(int y, int z) {
+			final int bits = BrickedVolumetricSpace.BRICK_BITS;
+			final int by0 = y >> bits, by1 = (y + 1) >> bits;
+			final int bz0 = z >> bits, bz1 = (z + 1) >> bits;
+			boolean isOccupied = false;
+			for (int bx = 0; bx < occupiedBricks.length; bx++) {
+				boolean brick = bricks.isBrickAllocated(bx, by0, bz0)
+						|| bricks.isBrickAllocated(bx, by1, bz0)
+						|| bricks.isBrickAllocated(bx, by0, bz1)
+						|| bricks.isBrickAllocated(bx, by1, bz1);
+				occupiedBricks[bx] = brick;
+				isOccupied |= brick;
+			}
+			return isOccupied;
+		}
+
+		private Vec3D getEdgeVertex(int x, int y, int edge) {
+			int[] eo = MarchingCubesTables.EDGE_OFFSETS[edge];
+			int key = ((x + eo[0]) + volume.resX * (y + eo[1])) * 3 + eo[3];
+			return (eo[2] == 0 ? prevVertices : vertices).get(key);
+		}
+
+		private void swapSlices() {
+			int[] cells = prevCellIndices;
+			prevCellIndices = cellIndices;
+			cellIndices = cells;
+			HashMap<Integer, Vec3D> verts = prevVertices;
+			prevVertices = vertices;
+			vertices = verts;
+			vertices.clear();
+		}
+	}
+
+	/**
+	 * Computes the cumulative offsets along one axis in the same way as
+	 * HashIsoSurface does (by repeated addition rather than multiplication).
+	 */
+	private static float[] accumulateOffsets(float start, float step, int num) {
+		float[] offsets = new float[num];
+		float offset = start;
+		for (int i = 0; i < num; i++) {
+			offsets[i] = offset;
+			offset += step;
+		}
+		return offsets;
+	}
+
+	/**
+	 * Computes the bit mask of the edges (X = 1, Y = 2, Z = 4) owned by a
+	 * cell's origin corner, which are intersected by the iso surface for the
+	 * given cell configuration. Equivalent to MarchingCubesIndex.edgesToCompute
+	 */
+	private static int getEdgesToCompute(int cellIndex) {
+		int origin = cellIndex & 1;
+		int flags = 0;
+		if (((cellIndex >> 1) & 1) != origin) {
+			flags |= 1;
+		}
+		if (((cellIndex >> 4) & 1) != origin) {
+			flags |= 2;
+		}
+		if (((cellIndex >> 3) & 1) != origin) {
+			flags |= 4;
+		}
+		return flags;
+	}
+
+	protected final VolumetricSpace volume;
+
+	/**
+	 * Same as volume, if it's a bricked volume (else null). Used to skip cells
+	 * in unallocated (empty) bricks.
+	 */
+	private final BrickedVolumetricSpace bricks;
+
+	/**
+	 * Same as volume, if it's a mapped volume (else null). Used to skip empty
+	 * slices.
+	 */
+	private final MappedVolumetricSpace mapped;
+
+	protected final Vec3D cellSize;
+	protected final Vec3D centreOffset;
+
+	/**
+	 * Pre-computed cell positions along each axis
+	 */
+	private final float[] offsetX, offsetY, offsetZ;
+
+	public ParallelIsoSurface(VolumetricSpace volume) {
+		this.volume = volume;
+		this.bricks = volume instanceof BrickedVolumetricSpace ? (BrickedVolumetricSpace) volume
+				: null;
+		this.mapped = volume instanceof MappedVolumetricSpace ? (MappedVolumetricSpace) volume
+				: null;
+		cellSize = new Vec3D(volume.scale.x / volume.resX1, volume.scale.y
+				/ volume.resY1, volume.scale.z / volume.resZ1);
+		centreOffset = volume.halfScale.getInverted();
+		offsetX = accumulateOffsets(centreOffset.x, cellSize.x, volume.resX);
+		offsetY = accumulateOffsets(centreOffset.y, cellSize.y, volume.resY);
+		offsetZ = accumulateOffsets(centreOffset.z, cellSize.z, volume.resZ);
+	}
+
+	/**
+	 * Computes the iso surface for the given value and passes all triangles
+	 * (in the same order as {@link toxi.volume.HashIsoSurface} would create
+	 * them) to the given consumer. The consumer is only called from the
+	 * current thread.
+	 * 
+	 * @param iso
+	 *            iso value
+	 * @param consumer
+	 *            triangle receiver
+	 */
+	public void computeSurface(float iso, TriangleConsumer consumer) {
+		int numSlices = volume.resZ1;
+		int batchSize = ParallelTasks.NUM_THREADS * SLABS_PER_THREAD;
+		int depth = MathUtils.clip((numSlices + batchSize - 1) / batchSize,
+				MIN_SLAB_DEPTH, MAX_SLAB_DEPTH);
+		int numSlabs = ParallelTasks.getNumChunks(numSlices, depth);
+		List<SlabTask> tasks = new ArrayList<SlabTask>(batchSize);
+		for (int i = 0; i < numSlabs; i += batchSize) {
+			tasks.clear();
+			for (int j = i, end = Math.min(i + batchSize, numSlabs); j < end; j++) {
+				int minZ = j * depth;
+				tasks.add(new SlabTask(minZ, Math.min(minZ + depth, numSlices),
+						iso));
+			}
+			for (List<Vec3D> faces : ParallelTasks.invokeAll(tasks)) {
+				for (int k = 0, num = faces.size(); k < num; k += 3) {
+					consumer.addTriangle(faces.get(k), faces.get(k + 1),
+							faces.get(k + 2));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the surface mesh for the given iso value. If the given mesh is
+	 * null a new one is created, else the existing mesh is cleared first.
+	 */
+	@Override
+	public Mesh3D computeSurfaceMesh(Mesh3D mesh, float iso) {
+		if (mesh == null) {
+			mesh = new TriangleMesh("isosurface-" + iso);
+		} else {
+			mesh.clear();
+		}
+		final Mesh3D target = mesh;
+		computeSurface(iso, new TriangleConsumer() {
+
+			@Override
+			public void addTriangle(Vec3D a, Vec3D b, Vec3D c) {
+				target.addFace(a, b, c);
+			}
+		});
+		return mesh;
+	}
+
+	/**
+	 * Returns the cell configuration of the cell with the given origin voxel.
+	 */
+	protected final int getCellIndex(int idx, float iso) {
+		final VolumetricSpace v = volume;
+		final int resX = v.resX;
+		final int sliceRes = v.sliceRes;
+		int cellIndex = 0;
+		if (v.getVoxelAt(idx) < iso) {
+			cellIndex |= 0x01;
+		}
+		if (v.getVoxelAt(idx + sliceRes) < iso) {
+			cellIndex |= 0x08;
+		}
+		if (v.getVoxelAt(idx + resX) < iso) {
+			cellIndex |= 0x10;
+		}
+		if (v.getVoxelAt(idx + resX + sliceRes) < iso) {
+			cellIndex |= 0x80;
+		}
+		idx++;
+		if (v.getVoxelAt(idx) < iso) {
+			cellIndex |= 0x02;
+		}
+		if (v.getVoxelAt(idx + sliceRes) < iso) {
+			cellIndex |= 0x04;
+		}
+		if (v.getVoxelAt(idx + resX) < iso) {
+			cellIndex |= 0x20;
+		}
+		if (v.getVoxelAt(idx + resX + sliceRes) < iso) {
+			cellIndex |= 0x40;
+		}
+		return cellIndex;
+	}
+
+	/**
+	 * This implementation doesn't keep any state between calls to
+	 * {@link #computeSurfaceMesh(Mesh3D, float)}, so this method does nothing.
+	 */
+	@Override
+	public void reset() {
+	}
+}
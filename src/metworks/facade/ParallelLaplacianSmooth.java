@@ -0,0 +1,314 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package metworks.facade;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import toxi.geom.mesh.DefaultSelector;
+import toxi.geom.mesh.Vertex;
+import toxi.geom.mesh.VertexSelector;
+import toxi.geom.mesh.WEMeshFilterStrategy;
+import toxi.geom.mesh.WETriangleMesh;
+import toxi.geom.mesh.WEVertex;
+import toxi.geom.mesh.WingedEdge;
+
+/**
+ * Multi-threaded replacement for {@link toxi.geom.mesh.LaplacianSmooth}. The
+ * vertex adjacency of the mesh is converted once into a flat, compressed
+ * sparse row (CSR) array and vertex positions are stored in two sets of
+ * float arrays, which are alternately used as source & destination for each
+ * iteration. Iterations therefore don't allocate any objects and each one is
+ * processed in parallel chunks of vertices. The mesh vertices are only
+ * updated (and the mesh index & normals rebuilt) once all iterations are
+ * done.
+ * 
+ * In the default mode each vertex is moved to the average position of its
+ * neighbours, giving exactly the same result as LaplacianSmooth. Optionally,
+ * Taubin's lambda/mu smoothing can be used instead, which alternates a
+ * shrinking (lambda > 0) and an inflating (mu < -lambda) step per iteration
+ * and so avoids the volume loss of plain Laplacian smoothing.
+ */
+public class ParallelLaplacianSmooth implements WEMeshFilterStrategy {
+
+	/**
+	 * Number of vertices processed by a single task
+	 */
+	private static final int VERTEX_CHUNK_SIZE = 4096;
+
+	/**
+	 * Default Taubin smoothing factors
+	 */
+	public static final float DEFAULT_LAMBDA = 0.5f;
+	public static final float DEFAULT_MU = -0.53f;
+
+	private boolean useTaubin;
+	private float lambda = DEFAULT_LAMBDA;
+	private float mu = DEFAULT_MU;
+
+	/**
+	 * Vertex adjacency in CSR format: the neighbours of vertex i are stored in
+	 * neighbours[neighbourStart[i]...neighbourStart[i+1]]
+	 */
+	private int[] neighbourStart, neighbours;
+
+	/**
+	 * Flags of vertices to be smoothed (all others stay in place)
+	 */
+	private boolean[] isSelected;
+
+	/**
+	 * Double buffered vertex positions
+	 */
+	private float[] srcX, srcY, srcZ, destX, destY, destZ;
+
+	/**
+	 * Creates a new filter using plain Laplacian smoothing.
+	 */
+	public ParallelLaplacianSmooth() {
+	}
+
+	/**
+	 * Creates a new filter using Taubin smoothing with the given factors.
+	 * 
+	 * @param lambda
+	 *            positive smoothing factor
+	 * @param mu
+	 *            negative inflation factor (with |mu| > lambda)
+	 */
+	public ParallelLaplacianSmooth(float lambda, float mu) {
+		setTaubin(lambda, mu);
+	}
+
+	@Override
+	public void filter(VertexSelector selector, int numIterations) {
+		if (!(selector.getMesh() instanceof WETriangleMesh)) {
+			throw new IllegalArgumentException(
+					"This filter requires a WETriangleMesh");
+		}
+		WETriangleMesh mesh = (WETriangleMesh) selector.getMesh();
+		Vertex[] vertices = mesh.getVertices().toArray(new Vertex[0]);
+		if (vertices.length == 0 || numIterations < 1) {
+			return;
+		}
+		buildAdjacency(vertices, selector.getSelection());
+		for (int i = 0; i < numIterations; i++) {
+			if (useTaubin) {
+				smooth(lambda);
+				smooth(mu);
+			} else {
+				smooth(1);
+			}
+		}
+		for (int i = 0; i < vertices.length; i++) {
+			vertices[i].set(srcX[i], srcY[i], srcZ[i]);
+		}
+		mesh.rebuildIndex();
+		mesh.computeFaceNormals();
+		mesh.computeVertexNormals();
+		neighbourStart = neighbours = null;
+		isSelected = null;
+		srcX = srcY = srcZ = destX = destY = destZ = null;
+	}
+
+	@Override
+	public void filter(WETriangleMesh mesh, int numIterations) {
+		filter(new DefaultSelector(mesh).selectVertices(), numIterations);
+	}
+
+	/**
+	 * @return the lambda factor used in Taubin mode
+	 */
+	public float getLambda() {
+		return lambda;
+	}
+
+	/**
+	 * @return the mu factor used in Taubin mode
+	 */
+	public float getMu() {
+		return mu;
+	}
+
+	/**
+	 * @return true, if Taubin smoothing is used
+	 */
+	public boolean isUsingTaubin() {
+		return useTaubin;
+	}
+
+	/**
+	 * Enables Taubin smoothing with the given factors.
+	 * 
+	 * @param lambda
+	 *            positive smoothing factor
+	 * @param mu
+	 *            negative inflation factor (with |mu| > lambda)
+	 */
+	public void setTaubin(float lambda, float mu) {
+		if (lambda <= 0 || mu >= -lambda) {
+			throw new IllegalArgumentException(
+					"lambda needs to be > 0 and mu < -lambda");
+		}
+		this.lambda = lambda;
+		this.mu = mu;
+		useTaubin = true;
+	}
+
+	/**
+	 * Switches between plain Laplacian (default) & Taubin smoothing.
+	 * 
+	 * @param state
+	 */
+	public void setUseTaubin(boolean state) {
+		useTaubin = state;
+	}
+
+	/**
+	 * Converts the mesh connectivity into CSR format and copies all vertex
+	 * positions into the source buffers. Neighbours are stored in the same
+	 * order as returned by {@link WEVertex#getNeighbors()}.
+	 */
+	private void buildAdjacency(Vertex[] vertices, Collection<Vertex> selection) {
+		final int numVertices = vertices.length;
+		int maxID = 0;
+		for (Vertex v : vertices) {
+			maxID = Math.max(maxID, v.id);
+		}
+		int[] indexForID = new int[maxID + 1];
+		int numNeighbours = 0;
+		for (int i = 0; i < numVertices; i++) {
+			indexForID[vertices[i].id] = i;
+			numNeighbours += ((WEVertex) vertices[i]).edges.size();
+		}
+		neighbourStart = new int[numVertices + 1];
+		neighbours = new int[numNeighbours];
+		srcX = new float[numVertices];
+		srcY = new float[numVertices];
+		srcZ = new float[numVertices];
+		destX = new float[numVertices];
+		destY = new float[numVertices];
+		destZ = new float[numVertices];
+		isSelected = new boolean[numVertices];
+		int n = 0;
+		for (int i = 0; i < numVertices; i++) {
+			WEVertex v = (WEVertex) vertices[i];
+			neighbourStart[i] = n;
+			for (WingedEdge e : v.edges) {
+				neighbours[n++] = indexForID[e.getOtherEndFor(v).id];
+			}
+			srcX[i] = v.x;
+			srcY[i] = v.y;
+			srcZ[i] = v.z;
+		}
+		neighbourStart[numVertices] = n;
+		for (Vertex v : selection) {
+			if (v.id <= maxID) {
+				isSelected[indexForID[v.id]] = true;
+			}
+		}
+	}
+
+	/**
+	 * Executes a single smoothing step for all vertices in parallel and swaps
+	 * the position buffers afterwards.
+	 * 
+	 * @param factor
+	 *            amount of movement towards the neighbour average (1.0 =
+	 *            plain Laplacian)
+	 */
+	private void smooth(final float factor) {
+		final int numVertices = srcX.length;
+		int numChunks = ParallelTasks.getNumChunks(numVertices,
+				VERTEX_CHUNK_SIZE);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			final int from = i * VERTEX_CHUNK_SIZE;
+			final int to = Math.min(from + VERTEX_CHUNK_SIZE, numVertices);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					smoothRange(from, to, factor);
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(tasks);
+		float[] t = srcX;
+		srcX = destX;
+		destX = t;
+		t = srcY;
+		srcY = destY;
+		destY = t;
+		t = srcZ;
+		srcZ = destZ;
+		destZ = t;
+	}
+
+	private void smoothRange(int from, int to, float factor) {
+		final float[] sx = srcX, sy = srcY, sz = srcZ;
+		for (int i = from; i < to; i++) {
+			int start = neighbourStart[i];
+			int end = neighbourStart[i + 1];
+			if (!isSelected[i] || start == end) {
+				destX[i] = sx[i];
+				destY[i] = sy[i];
+				destZ[i] = sz[i];
+				continue;
+			}
+			float x = 0, y = 0, z = 0;
+			for (int j = start; j < end; j++) {
+				int k = neighbours[j];
+				x += sx[k];
+				y += sy[k];
+				z += sz[k];
+			}
+			float invNum = 1f / (end - start);
+			x *= invNum;
+			y *= invNum;
+			z *= invNum;
+			if (factor != 1) {
+				x = sx[i] + (x - sx[i]) * factor;
+				y = sy[i] + (y - sy[i]) * factor;
+				z = sz[i] + (z - sz[i]) * factor;
+			}
+			destX[i] = x;
+			destY[i] = y;
+			destZ[i] = z;
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import toxi.geom.Polygon2D;
+import toxi.geom.PolygonClipper2D;
+import toxi.geom.Rect;
+import toxi.geom.SutherlandHodgemanClipper;
+import toxi.geom.Triangle2D;
+import toxi.geom.Vec2D;
+
+/**
+ * Clips large numbers of polygons (e.g. Voronoi regions or Delaunay
+ * triangles) against a bounding rectangle using multiple threads. Polygons
+ * which are fully inside the rectangle are accepted as they are without
+ * running them through the actual clipping algorithm. Only polygons with at
+ * least 3 vertices (after clipping) are kept.
+ * 
+ * Results are written into an internal buffer which is reused between calls,
+ * so the returned list is only valid until the next call.
+ */
+public class ParallelPolygonClipper {
+
+	/**
+	 * Number of shapes processed by a single task
+	 */
+	private static final int CHUNK_SIZE = 256;
+
+	/**
+	 * Clipping rectangle
+	 */
+	private final Rect bounds;
+
+	/**
+	 * Per input shape result slots (null if shape was rejected)
+	 */
+	private Polygon2D[] slots = new Polygon2D[0];
+
+	/**
+	 * Reusable result list
+	 */
+	private final List<Polygon2D> result = new ArrayList<Polygon2D>();
+
+	/**
+	 * Creates a new clipper for the given bounding rectangle.
+	 * 
+	 * @param bounds
+	 */
+	public ParallelPolygonClipper(Rect bounds) {
+		this.bounds = bounds;
+	}
+
+	/**
+	 * Clips all given shapes and collects the results (in the same order)
+	 * into the reusable result list.
+	 * 
+	 * @param shapes
+	 *            list of {@link Polygon2D} or {@link Triangle2D} instances
+	 * @return clipped polygons
+	 */
+	private List<Polygon2D> clip(final List<?> shapes) {
+		final int num = shapes.size();
+		if (slots.length < num) {
+			slots = new Polygon2D[num];
+		}
+		int numChunks = ParallelTasks.getNumChunks(num, CHUNK_SIZE);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			final int from = i * CHUNK_SIZE;
+			final int to = Math.min(from + CHUNK_SIZE, num);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					// clipper instances are cheap, but use one per task to
+					// be on the safe side regarding thread safety
+					PolygonClipper2D clipper = new SutherlandHodgemanClipper(
+							bounds);
+					for (int j = from; j < to; j++) {
+						Object s = shapes.get(j);
+						Polygon2D p = s instanceof Triangle2D ? ((Triangle2D) s)
+								.toPolygon2D() : (Polygon2D) s;
+						if (isInsideBounds(p)) {
+							// same result as clipping: a copy without
+							// duplicate vertices
+							p = copyPolygon(p);
+						} else {
+							p = clipper.clipPolygon(p);
+						}
+						// only accept polygon if it still has at least 3
+						// vertices
+						slots[j] = p.getNumVertices() >= 3 ? p : null;
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(tasks);
+		result.clear();
+		for (int i = 0; i < num; i++) {
+			if (slots[i] != null) {
+				result.add(slots[i]);
+				slots[i] = null;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a copy of the given polygon (with copies of its vertices) and
+	 * removes duplicate vertices, just like
+	 * {@link SutherlandHodgemanClipper#clipPolygon(Polygon2D)} does.
+	 * 
+	 * @param poly
+	 * @return new polygon
+	 */
+	private static Polygon2D copyPolygon(Polygon2D poly) {
+		Polygon2D copy = new Polygon2D();
+		for (Vec2D v : poly.vertices) {
+			copy.add(v.copy());
+		}
+		return copy.removeDuplicates(0.001f);
+	}
+
+	/**
+	 * Clips all given polygons.
+	 * 
+	 * @param polygons
+	 * @return list of clipped polygons (reused between calls)
+	 */
+	public List<Polygon2D> clipPolygons(List<Polygon2D> polygons) {
+		return clip(polygons);
+	}
+
+	/**
+	 * Converts all given triangles into polygons and clips them.
+	 * 
+	 * @param triangles
+	 * @return list of clipped polygons (reused between calls)
+	 */
+	public List<Polygon2D> clipTriangles(List<Triangle2D> triangles) {
+		return clip(triangles);
+	}
+
+	/**
+	 * @return clipping rectangle
+	 */
+	public Rect getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * Checks if the bounding box of the given polygon is fully inside the
+	 * clipping rectangle.
+	 * 
+	 * @param p
+	 * @return true, if no clipping is needed
+	 */
+	private boolean isInsideBounds(Polygon2D p) {
+		final float minX = bounds.x;
+		final float minY = bounds.y;
+		final float maxX = bounds.x + bounds.width;
+		final float maxY = bounds.y + bounds.height;
+		for (int i = 0, num = p.vertices.size(); i < num; i++) {
+			Vec2D v = p.vertices.get(i);
+			if (v.x < minX || v.x > maxX || v.y < minY || v.y > maxY) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
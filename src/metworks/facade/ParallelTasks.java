@@ -0,0 +1,131 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared worker thread pool and helpers for splitting work into independent
+ * chunks. All threads are daemons so they don't prevent the application from
+ * exiting.
+ */
+public final class ParallelTasks {
+
+	/**
+	 * Number of worker threads (one per available CPU core)
+	 */
+	public static final int NUM_THREADS = Runtime.getRuntime()
+			.availableProcessors();
+
+	private static ExecutorService pool;
+
+	/**
+	 * @return shared thread pool (created lazily on first request)
+	 */
+	public static synchronized ExecutorService getPool() {
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(NUM_THREADS,
+					new ThreadFactory() {
+
+						private int count;
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "facade-worker-"
+									+ (count++));
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return pool;
+	}
+
+	/**
+	 * Executes all given tasks on the shared pool and waits until all of them
+	 * have completed. If only a single task is given, it is executed directly
+	 * on the calling thread. Any exception thrown by a task is re-thrown
+	 * (wrapped in a RuntimeException, if needed).
+	 * 
+	 * @param tasks
+	 * @return list of task results (in same order as tasks)
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if (tasks.size() == 1) {
+				results.add(tasks.get(0).call());
+			} else {
+				for (Future<T> f : getPool().invokeAll(tasks)) {
+					results.add(f.get());
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
+	/**
+	 * Computes the number of chunks needed to split the given number of items
+	 * into chunks of the given size.
+	 * 
+	 * @param numItems
+	 * @param chunkSize
+	 * @return number of chunks (at least 1)
+	 */
+	public static int getNumChunks(int numItems, int chunkSize) {
+		return Math.max((numItems + chunkSize - 1) / chunkSize, 1);
+	}
+
+	private ParallelTasks() {
+	}
+}
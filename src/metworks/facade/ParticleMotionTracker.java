@@ -0,0 +1,126 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+/**
+ * Keeps a snapshot of all particle positions of a {@link ParticleSystem} in
+ * order to detect if any particle has moved further than a given threshold
+ * since the snapshot was taken. This is used to avoid recomputing derived
+ * geometry (e.g. Voronoi cells) while the particle system is (nearly) at
+ * rest.
+ */
+public class ParticleMotionTracker {
+
+	/**
+	 * Snapshot of particle positions
+	 */
+	private float[] snapX = new float[0], snapY = new float[0];
+
+	/**
+	 * Number of particles in snapshot (-1 = no snapshot taken yet)
+	 */
+	private int numParticles = -1;
+
+	/**
+	 * Squared motion threshold distance
+	 */
+	private float thresholdSquared;
+
+	/**
+	 * Creates a new tracker with the given motion threshold.
+	 * 
+	 * @param threshold
+	 *            min. distance a particle needs to move to be considered as
+	 *            changed
+	 */
+	public ParticleMotionTracker(float threshold) {
+		setThreshold(threshold);
+	}
+
+	/**
+	 * Checks if the number of particles has changed or if any particle has
+	 * moved further than the threshold distance since the last snapshot.
+	 * 
+	 * @param sys
+	 * @return true, if positions have changed
+	 */
+	public boolean hasMoved(ParticleSystem sys) {
+		int num = sys.getNumParticles();
+		if (num != numParticles) {
+			return true;
+		}
+		for (int i = 0; i < num; i++) {
+			float dx = sys.getParticleX(i) - snapX[i];
+			float dy = sys.getParticleY(i) - snapY[i];
+			if (dx * dx + dy * dy > thresholdSquared) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Discards the current snapshot, so that the next call to
+	 * {@link #hasMoved(ParticleSystem)} will return true.
+	 */
+	public void invalidate() {
+		numParticles = -1;
+	}
+
+	/**
+	 * Sets the motion threshold distance.
+	 * 
+	 * @param threshold
+	 */
+	public void setThreshold(float threshold) {
+		thresholdSquared = threshold * threshold;
+	}
+
+	/**
+	 * Takes a new snapshot of the current particle positions.
+	 * 
+	 * @param sys
+	 */
+	public void update(ParticleSystem sys) {
+		int num = sys.getNumParticles();
+		if (snapX.length < num) {
+			snapX = new float[num];
+			snapY = new float[num];
+		}
+		for (int i = 0; i < num; i++) {
+			snapX[i] = sys.getParticleX(i);
+			snapY[i] = sys.getParticleY(i);
+		}
+		numParticles = num;
+	}
+}
@@ -34,16 +34,20 @@ package metworks.facade;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
 
 import processing.core.PGraphics;
 import toxi.geom.Circle;
 import toxi.geom.Rect;
 import toxi.geom.Vec2D;
+import toxi.math.MathUtils;
 import toxi.math.ScaleMap;
 import toxi.physics2d.VerletParticle2D;
 import toxi.physics2d.VerletPhysics2D;
 import toxi.physics2d.behaviors.AttractionBehavior2D;
 import toxi.physics2d.behaviors.ParticleBehavior2D;
+import toxi.physics2d.constraints.ParticleConstraint2D;
 import toxi.processing.ToxiclibsSupport;
 
 /**
@@ -91,6 +95,47 @@ public class ParticleSystem {
 	 */
 	private float separation = 20;
 
+	/**
+	 * Repulsion force strength between particles
+	 */
+	private static final float SEPARATION_STRENGTH = -1.2f;
+
+	/**
+	 * Grid based repulsion applied to all particles (instead of one
+	 * AttractionBehavior2D per particle)
+	 */
+	private final SpatialHashSeparation separationForce;
+
+	/**
+	 * Number of particles processed by a single task in parallel update mode.
+	 * The partitioning only depends on this constant (not on the number of
+	 * CPU cores), and each particle is only ever updated by a single task.
+	 */
+	private static final int PARALLEL_CHUNK_SIZE = 512;
+
+	/**
+	 * Flag to indicate if the physics update should be split across multiple
+	 * threads
+	 */
+	private boolean isParallel;
+
+	/**
+	 * Buffers for the repulsion forces computed in parallel mode
+	 */
+	private float[] forceX = new float[0], forceY = new float[0];
+
+	/**
+	 * Optional primitive array based particle storage. If not null, all
+	 * particles are stored & updated here instead of in {@link #physics}.
+	 */
+	private final PackedParticleStore packedStore;
+
+	/**
+	 * Random number generator used for placing attractors & particles. Can be
+	 * seeded to produce reproducible layouts.
+	 */
+	private final Random random = new Random();
+
 	/**
 	 * Creates a new instance with the given world bounds for the physics
 	 * simulation.
@@ -99,11 +144,28 @@ public class ParticleSystem {
 	 * @param height
 	 */
 	public ParticleSystem(int width, int height) {
+		this(width, height, false);
+	}
+
+	/**
+	 * Creates a new instance with the given world bounds for the physics
+	 * simulation and the choice of particle storage.
+	 * 
+	 * @param width
+	 * @param height
+	 * @param usePackedStore
+	 *            true, to store particles in a {@link PackedParticleStore}
+	 *            instead of VerletParticle2D objects
+	 */
+	public ParticleSystem(int width, int height, boolean usePackedStore) {
 		physics = new VerletPhysics2D();
-		physics.setDrag(0.03f);
 		attractors = new ArrayList<AttractionBehavior2D>();
 		bounds = new Rect(0, 0, width, height);
 		physics.setWorldBounds(bounds);
+		separationForce = new SpatialHashSeparation(bounds, separation,
+				SEPARATION_STRENGTH);
+		packedStore = usePackedStore ? new PackedParticleStore(bounds) : null;
+		setDrag(0.03f);
 	}
 
 	/**
@@ -118,11 +180,11 @@ public class ParticleSystem {
 		// of possible numbers of particles to add
 		ScaleMap radiusParticleMap = new ScaleMap(50, 200, 10, 60);
 		// pick a random value from the input range (possible radius: 50 - 200)
-		float radius = (float) radiusParticleMap.getInputRange().pickRandom();
+		float radius = MathUtils.random(random, 50f, 200f);
 		// create new positive attractor at random position and 50% of full
 		// force
-		AttractionBehavior2D a = new AttractionBehavior2D(
-				bounds.getRandomPoint(), radius, 0.5f);
+		AttractionBehavior2D a = new AttractionBehavior2D(getRandomPoint(),
+				radius, 0.5f);
 		// add to simulation
 		physics.addBehavior(a);
 		// add to list of attractors (used for selecting etc.)
@@ -130,28 +192,31 @@ public class ParticleSystem {
 		// now get a proportional number of particles to add for the picked
 		// radius
 		int numP = (int) radiusParticleMap.getMappedValueFor(radius);
-		// define a circle matching the attractor position and radius of
-		// influence
-		Circle attractorCircle = new Circle(a.getAttractor(), radius);
 		for (int i = 0; i < numP; i++) {
-			// create each particle within the circle
-			Vec2D pos = attractorCircle.getRandomPoint();
-			addParticle(pos);
+			// create each particle within the circle defined by the attractor
+			// position and radius of influence
+			Vec2D pos = Vec2D.fromTheta(
+					MathUtils.random(random, MathUtils.TWO_PI)).scaleSelf(
+					MathUtils.random(random, radius));
+			addParticle(pos.addSelf(a.getAttractor()));
 		}
 		// mark new attractor as selection
 		selectAttractor(a);
 	}
 
 	/**
-	 * Adds a single particle incl. repulsive force field around itself.
+	 * Adds a single particle. The repulsive force field around it is handled
+	 * by the shared {@link SpatialHashSeparation} instance.
 	 * 
 	 * @param pos
 	 *            particle position
 	 */
 	private void addParticle(Vec2D pos) {
-		VerletParticle2D p = new VerletParticle2D(pos);
-		physics.addParticle(p);
-		physics.addBehavior(new AttractionBehavior2D(p, separation, -1.2f));
+		if (packedStore != null) {
+			packedStore.add(pos);
+		} else {
+			physics.addParticle(new VerletParticle2D(pos));
+		}
 	}
 
 	/**
@@ -162,7 +227,7 @@ public class ParticleSystem {
 	 */
 	public void addParticles(int num) {
 		for (int i = 0; i < num; i++) {
-			addParticle(bounds.getRandomPoint());
+			addParticle(getRandomPoint());
 		}
 	}
 
@@ -173,6 +238,9 @@ public class ParticleSystem {
 		deselectAttractor();
 		physics.clear();
 		attractors.clear();
+		if (packedStore != null) {
+			packedStore.clear();
+		}
 	}
 
 	/**
@@ -202,8 +270,16 @@ public class ParticleSystem {
 			gfx.circle(a.getAttractor(), a.getRadius());
 		}
 		pg.stroke(255, 255, 0);
-		for (VerletParticle2D p : physics.particles) {
-			gfx.circle(p, 2);
+		if (packedStore != null) {
+			float[] x = packedStore.getX();
+			float[] y = packedStore.getY();
+			for (int i = 0, num = packedStore.getNumParticles(); i < num; i++) {
+				pg.ellipse(x[i], y[i], 2, 2);
+			}
+		} else {
+			for (VerletParticle2D p : physics.particles) {
+				gfx.circle(p, 2);
+			}
 		}
 	}
 
@@ -222,12 +298,67 @@ public class ParticleSystem {
 	}
 
 	/**
+	 * @return number of particles in the system
+	 */
+	public int getNumParticles() {
+		if (packedStore != null) {
+			return packedStore.getNumParticles();
+		}
+		return physics.particles.size();
+	}
+
+	/**
+	 * @param i
+	 *            particle index
+	 * @return x coordinate of particle
+	 */
+	public float getParticleX(int i) {
+		if (packedStore != null) {
+			return packedStore.getX()[i];
+		}
+		return physics.particles.get(i).x;
+	}
+
+	/**
+	 * @param i
+	 *            particle index
+	 * @return y coordinate of particle
+	 */
+	public float getParticleY(int i) {
+		if (packedStore != null) {
+			return packedStore.getY()[i];
+		}
+		return physics.particles.get(i).y;
+	}
+
+	/**
+	 * @return primitive particle storage or null, if particles are stored as
+	 *         VerletParticle2D objects in the physics engine
+	 */
+	public PackedParticleStore getPackedStore() {
+		return packedStore;
+	}
+
+	/**
+	 * Returns the underlying physics engine. Note: If this system uses a
+	 * {@link PackedParticleStore}, the engine only holds the attractors but
+	 * no particles.
+	 * 
 	 * @return physics engine
 	 */
 	public VerletPhysics2D getPhysics() {
 		return physics;
 	}
 
+	/**
+	 * @return random position within the world bounds
+	 */
+	private Vec2D getRandomPoint() {
+		return new Vec2D(MathUtils.random(random, bounds.x, bounds.x
+				+ bounds.width), MathUtils.random(random, bounds.y, bounds.y
+				+ bounds.height));
+	}
+
 	/**
 	 * @return selected attractor
 	 */
@@ -242,6 +373,13 @@ public class ParticleSystem {
 		return separation;
 	}
 
+	/**
+	 * @return true, if the physics update is split across multiple threads
+	 */
+	public boolean isParallel() {
+		return isParallel;
+	}
+
 	/**
 	 * @return true, if selection is not null.
 	 */
@@ -290,31 +428,148 @@ public class ParticleSystem {
 	 */
 	public void setDrag(float newDrag) {
 		physics.setDrag(newDrag);
+		if (packedStore != null) {
+			packedStore.setDrag(newDrag);
+		}
+	}
+
+	/**
+	 * Enables/disables the multi-threaded physics update. Both modes produce
+	 * identical results.
+	 * 
+	 * @param state
+	 */
+	public void setParallel(boolean state) {
+		isParallel = state;
+	}
+
+	/**
+	 * Seeds the random number generator used for placing attractors and
+	 * particles. Using the same seed (and sequence of operations) will result
+	 * in the same layout.
+	 * 
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
 	}
 
 	/**
-	 * Applies the given separation distance to all existing
-	 * {@link AttractionBehavior2D}s, but NOT if they are in the list of
-	 * "actual" attractors. Hence only the repulsion radius between "standard"
-	 * particles will be updated.
+	 * Updates the repulsion radius between "standard" particles. The
+	 * attractors are not affected.
 	 * 
 	 * @param s
 	 *            new separation distance
 	 */
 	public void setSeparation(float s) {
 		separation = s;
-		for (ParticleBehavior2D p : physics.behaviors) {
-			if (!attractors.contains(p)) {
-				AttractionBehavior2D a = (AttractionBehavior2D) p;
-				a.setRadius(separation);
+		separationForce.setRadius(separation);
+	}
+
+	/**
+	 * Applies the grid based particle repulsion and then updates the
+	 * underlying physics system.
+	 */
+	public void update() {
+		int numP = getNumParticles();
+		if (packedStore != null) {
+			if (isParallel && numP > PARALLEL_CHUNK_SIZE) {
+				updatePackedParallel();
+			} else {
+				packedStore.update(separationForce, attractors,
+						physics.getTimeStep());
 			}
+		} else if (isParallel && numP > PARALLEL_CHUNK_SIZE) {
+			updateParallel();
+		} else {
+			separationForce.apply(physics.particles, physics.getTimeStep());
+			physics.update();
 		}
 	}
 
 	/**
-	 * Updates the underlying physics system.
+	 * Multi-threaded version of {@link #update()}. First takes a snapshot of
+	 * all particle positions, then splits the particles into fixed size
+	 * partitions which are processed concurrently. Each task computes the
+	 * forces for its own particles (only reading from the snapshot) and then
+	 * integrates them. The order of operations for each particle is the same
+	 * as in {@link VerletPhysics2D#update()}, so results don't depend on the
+	 * number of threads used.
 	 */
-	public void update() {
-		physics.update();
+	private void updateParallel() {
+		final List<VerletParticle2D> particles = physics.particles;
+		final int numP = particles.size();
+		if (forceX.length < numP) {
+			forceX = new float[numP];
+			forceY = new float[numP];
+		}
+		separationForce.build(particles);
+		final float timeStep = physics.getTimeStep();
+		// the engine internally stores the inverse drag value
+		final float drag = 1 - physics.getDrag();
+		final Rect worldBounds = physics.getWorldBounds();
+		int numChunks = ParallelTasks.getNumChunks(numP, PARALLEL_CHUNK_SIZE);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			final int from = i * PARALLEL_CHUNK_SIZE;
+			final int to = Math.min(from + PARALLEL_CHUNK_SIZE, numP);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					separationForce.computeForces(from, to, timeStep, forceX,
+							forceY);
+					Vec2D force = new Vec2D();
+					for (int j = from; j < to; j++) {
+						VerletParticle2D p = particles.get(j);
+						p.addForce(force.set(forceX[j], forceY[j]));
+						for (ParticleBehavior2D b : physics.behaviors) {
+							b.apply(p);
+						}
+						p.scaleVelocity(drag);
+						p.update();
+						for (ParticleConstraint2D c : physics.constraints) {
+							c.apply(p);
+						}
+						if (p.bounds != null) {
+							p.constrain(p.bounds);
+						}
+						if (worldBounds != null) {
+							p.constrain(worldBounds);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(tasks);
+	}
+
+	/**
+	 * Multi-threaded update of the {@link PackedParticleStore}. Like
+	 * {@link #updateParallel()} the particles are split into fixed size
+	 * partitions, each of which computes its forces from a snapshot of all
+	 * positions before integrating.
+	 */
+	private void updatePackedParallel() {
+		final int numP = packedStore.getNumParticles();
+		final float timeStep = physics.getTimeStep();
+		separationForce.build(packedStore.getX(), packedStore.getY(), numP);
+		int numChunks = ParallelTasks.getNumChunks(numP, PARALLEL_CHUNK_SIZE);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			final int from = i * PARALLEL_CHUNK_SIZE;
+			final int to = Math.min(from + PARALLEL_CHUNK_SIZE, numP);
+			tasks.add(new Callable<Void>() {
+
+				@Override
+				public Void call() {
+					packedStore.update(from, to, separationForce, attractors,
+							timeStep);
+					return null;
+				}
+			});
+		}
+		ParallelTasks.invokeAll(tasks);
 	}
 }
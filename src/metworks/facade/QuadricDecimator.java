@@ -0,0 +1,635 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package metworks.facade;
+
+import java.util.PriorityQueue;
+
+import toxi.geom.Vec3D;
+import toxi.geom.mesh.Face;
+import toxi.geom.mesh.Vertex;
+import toxi.geom.mesh.WETriangleMesh;
+
+/**
+ * Mesh simplification using quadric error metrics (Garland & Heckbert,
+ * "Surface Simplification Using Quadric Error Metrics", 1997). Edges are
+ * collapsed in order of increasing error (the sum of squared distances of the
+ * new vertex position to the planes of all original faces merged into it)
+ * until either the target face count is reached or the next collapse would
+ * exceed the max. error.
+ * 
+ * The source mesh is copied into a compact indexed representation (vertex
+ * coordinates, quadrics & face indices in flat arrays), candidate collapses
+ * are kept in a priority heap and lazily invalidated when one of their
+ * vertices changes. Collapses which would fold over faces or create
+ * non-manifold edges are rejected, so closed meshes stay closed.
+ */
+public class QuadricDecimator {
+
+	/**
+	 * Number of coefficients of a symmetric 4x4 quadric matrix
+	 */
+	private static final int QUADRIC_SIZE = 10;
+
+	/**
+	 * Determinants smaller than this (relative to the matrix scale) are
+	 * treated as singular, in which case the best of the edge end/mid points
+	 * is used instead of the optimal position
+	 */
+	private static final double SINGULAR_THRESHOLD = 1e-9;
+
+	/**
+	 * Weight of the planes added along open borders to preserve them
+	 */
+	private static final double BORDER_WEIGHT = 1000;
+
+	/**
+	 * Candidate edge collapse. Only valid as long as the version stamps of
+	 * both vertices are unchanged.
+	 */
+	private static class Collapse implements Comparable<Collapse> {
+
+		final int a, b;
+		final int versionA, versionB;
+		final double cost;
+		final double x, y, z;
+
+		Collapse(int a, int b, int versionA, int versionB, double cost,
+				double x, double y, double z) {
+			this.a = a;
+			this.b = b;
+			this.versionA = versionA;
+			this.versionB = versionB;
+			this.cost = cost;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public int compareTo(Collapse c) {
+			return Double.compare(cost, c.cost);
+		}
+	}
+
+	private int targetFaces;
+	private float maxError = Float.MAX_VALUE;
+
+	// compact indexed mesh
+	private double[] coords;
+	private double[] quadrics;
+	private int[] faces;
+	private boolean[] isFaceRemoved;
+	private int numFaces;
+
+	/**
+	 * Faces using each vertex (may contain removed faces)
+	 */
+	private int[][] vertexFaces;
+	private int[] numVertexFaces;
+	private int[] versions;
+	private boolean[] isVertexRemoved;
+
+	private PriorityQueue<Collapse> heap;
+
+	// scratch buffers reused in the collapse loop
+	private final double[] candidate = new double[4];
+	private final double[] mergedQuadric = new double[QUADRIC_SIZE];
+	private final double[] oldNormal = new double[3];
+	private final double[] newNormal = new double[3];
+
+	/**
+	 * Simplifies the given mesh (which isn't modified).
+	 * 
+	 * @param mesh
+	 *            source mesh
+	 * @return new simplified mesh
+	 */
+	public WETriangleMesh decimate(WETriangleMesh mesh) {
+		buildIndexedMesh(mesh);
+		if (numFaces == 0) {
+			return new WETriangleMesh(mesh.name + "-decimated");
+		}
+		computeQuadrics();
+		heap = new PriorityQueue<Collapse>(numFaces * 2);
+		for (int f = 0; f < faces.length; f += 3) {
+			for (int i = 0; i < 3; i++) {
+				int a = faces[f + i];
+				int b = faces[f + (i + 1) % 3];
+				// only add each (interior) edge once
+				if (a < b || !hasEdge(b, a)) {
+					addCollapse(a, b);
+				}
+			}
+		}
+		while (numFaces > targetFaces && !heap.isEmpty()) {
+			Collapse c = heap.poll();
+			if (c.cost > maxError) {
+				break;
+			}
+			if (!isVertexRemoved[c.a] && !isVertexRemoved[c.b]
+					&& versions[c.a] == c.versionA
+					&& versions[c.b] == c.versionB && isCollapseValid(c)) {
+				collapse(c);
+			}
+		}
+		heap = null;
+		return createMesh(mesh.name + "-decimated");
+	}
+
+	/**
+	 * @return max. error of a single collapse
+	 */
+	public float getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * @return target number of faces
+	 */
+	public int getTargetFaces() {
+		return targetFaces;
+	}
+
+	/**
+	 * Sets the max. error (in squared world units) accepted for a single edge
+	 * collapse. Decimation stops early if no cheaper collapse is left.
+	 * 
+	 * @param maxError
+	 */
+	public void setMaxError(float maxError) {
+		this.maxError = maxError;
+	}
+
+	/**
+	 * Sets the number of faces at which decimation stops (0 = only limited by
+	 * max. error).
+	 * 
+	 * @param targetFaces
+	 */
+	public void setTargetFaces(int targetFaces) {
+		this.targetFaces = targetFaces;
+	}
+
+	/**
+	 * Computes the optimal position for merging the given vertices and adds
+	 * the collapse to the heap.
+	 */
+	private void addCollapse(int a, int b) {
+		double[] q = mergedQuadric;
+		for (int i = 0; i < QUADRIC_SIZE; i++) {
+			q[i] = quadrics[a * QUADRIC_SIZE + i]
+					+ quadrics[b * QUADRIC_SIZE + i];
+		}
+		findPosition(q, a, b, candidate);
+		heap.add(new Collapse(a, b, versions[a], versions[b], candidate[3],
+				candidate[0], candidate[1], candidate[2]));
+	}
+
+	private void addFaceToVertex(int v, int f) {
+		int[] list = vertexFaces[v];
+		int num = numVertexFaces[v];
+		if (num == list.length) {
+			int[] grown = new int[Math.max(num * 2, 8)];
+			System.arraycopy(list, 0, grown, 0, num);
+			vertexFaces[v] = list = grown;
+		}
+		list[num] = f;
+		numVertexFaces[v] = num + 1;
+	}
+
+	/**
+	 * Adds the plane with the given normal & distance (weighted) to the
+	 * quadric of the given vertex.
+	 */
+	private void addPlane(int v, double nx, double ny, double nz, double d,
+			double weight) {
+		int q = v * QUADRIC_SIZE;
+		quadrics[q] += weight * nx * nx;
+		quadrics[q + 1] += weight * nx * ny;
+		quadrics[q + 2] += weight * nx * nz;
+		quadrics[q + 3] += weight * nx * d;
+		quadrics[q + 4] += weight * ny * ny;
+		quadrics[q + 5] += weight * ny * nz;
+		quadrics[q + 6] += weight * ny * d;
+		quadrics[q + 7] += weight * nz * nz;
+		quadrics[q + 8] += weight * nz * d;
+		quadrics[q + 9] += weight * d * d;
+	}
+
+	/**
+	 * Copies the given mesh into flat vertex & face arrays.
+	 */
+	private void buildIndexedMesh(WETriangleMesh mesh) {
+		int maxID = 0;
+		for (Vertex v : mesh.getVertices()) {
+			maxID = Math.max(maxID, v.id);
+		}
+		int[] indices = new int[maxID + 1];
+		int numVertices = mesh.getNumVertices();
+		coords = new double[numVertices * 3];
+		int i = 0;
+		for (Vertex v : mesh.getVertices()) {
+			indices[v.id] = i;
+			coords[i * 3] = v.x;
+			coords[i * 3 + 1] = v.y;
+			coords[i * 3 + 2] = v.z;
+			i++;
+		}
+		numFaces = mesh.getNumFaces();
+		faces = new int[numFaces * 3];
+		isFaceRemoved = new boolean[numFaces];
+		vertexFaces = new int[numVertices][];
+		numVertexFaces = new int[numVertices];
+		versions = new int[numVertices];
+		isVertexRemoved = new boolean[numVertices];
+		for (int v = 0; v < numVertices; v++) {
+			vertexFaces[v] = new int[6];
+		}
+		int f = 0;
+		for (Face face : mesh.getFaces()) {
+			faces[f * 3] = indices[face.a.id];
+			faces[f * 3 + 1] = indices[face.b.id];
+			faces[f * 3 + 2] = indices[face.c.id];
+			for (int j = 0; j < 3; j++) {
+				addFaceToVertex(faces[f * 3 + j], f);
+			}
+			f++;
+		}
+	}
+
+	/**
+	 * Merges vertex b into vertex a, moves a to the collapse position and
+	 * re-evaluates all edges around a.
+	 */
+	private void collapse(Collapse c) {
+		int a = c.a, b = c.b;
+		coords[a * 3] = c.x;
+		coords[a * 3 + 1] = c.y;
+		coords[a * 3 + 2] = c.z;
+		for (int i = 0; i < QUADRIC_SIZE; i++) {
+			quadrics[a * QUADRIC_SIZE + i] += quadrics[b * QUADRIC_SIZE + i];
+		}
+		// remove faces sharing the edge, re-link all other faces of b to a
+		int[] list = vertexFaces[b];
+		for (int i = 0, num = numVertexFaces[b]; i < num; i++) {
+			int f = list[i];
+			if (isFaceRemoved[f]) {
+				continue;
+			}
+			int fi = f * 3;
+			if (faces[fi] == a || faces[fi + 1] == a || faces[fi + 2] == a) {
+				isFaceRemoved[f] = true;
+				numFaces--;
+			} else {
+				for (int j = 0; j < 3; j++) {
+					if (faces[fi + j] == b) {
+						faces[fi + j] = a;
+					}
+				}
+				addFaceToVertex(a, f);
+			}
+		}
+		isVertexRemoved[b] = true;
+		vertexFaces[b] = null;
+		numVertexFaces[b] = 0;
+		compactFaceList(a);
+		// invalidate all queued collapses of a & re-evaluate its edges
+		versions[a]++;
+		list = vertexFaces[a];
+		for (int i = 0, num = numVertexFaces[a]; i < num; i++) {
+			int fi = list[i] * 3;
+			for (int j = 0; j < 3; j++) {
+				int v = faces[fi + j];
+				if (v != a && isFirstFaceWithEdge(a, v, list[i])) {
+					addCollapse(a, v);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes deleted faces from the face list of the given vertex.
+	 */
+	private void compactFaceList(int v) {
+		int[] list = vertexFaces[v];
+		int num = 0;
+		for (int i = 0, n = numVertexFaces[v]; i < n; i++) {
+			if (!isFaceRemoved[list[i]]) {
+				list[num++] = list[i];
+			}
+		}
+		numVertexFaces[v] = num;
+	}
+
+	/**
+	 * Initializes the quadrics of all vertices with the planes of their
+	 * faces, plus perpendicular planes along open borders.
+	 */
+	private void computeQuadrics() {
+		quadrics = new double[versions.length * QUADRIC_SIZE];
+		double[] n = new double[3];
+		for (int f = 0; f < numFaces; f++) {
+			int fi = f * 3;
+			if (!computeNormal(faces[fi], faces[fi + 1], faces[fi + 2], n)) {
+				continue;
+			}
+			int a = faces[fi];
+			double d = -(n[0] * coords[a * 3] + n[1] * coords[a * 3 + 1] + n[2]
+					* coords[a * 3 + 2]);
+			for (int i = 0; i < 3; i++) {
+				addPlane(faces[fi + i], n[0], n[1], n[2], d, 1);
+			}
+			for (int i = 0; i < 3; i++) {
+				int v1 = faces[fi + i], v2 = faces[fi + (i + 1) % 3];
+				if (!hasEdge(v2, v1)) {
+					addBorderPlane(v1, v2, n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds a plane through the given border edge, perpendicular to its face,
+	 * to the quadrics of both edge vertices.
+	 */
+	private void addBorderPlane(int v1, int v2, double[] n) {
+		double ex = coords[v2 * 3] - coords[v1 * 3];
+		double ey = coords[v2 * 3 + 1] - coords[v1 * 3 + 1];
+		double ez = coords[v2 * 3 + 2] - coords[v1 * 3 + 2];
+		double px = ey * n[2] - ez * n[1];
+		double py = ez * n[0] - ex * n[2];
+		double pz = ex * n[1] - ey * n[0];
+		double len = Math.sqrt(px * px + py * py + pz * pz);
+		if (len > 0) {
+			px /= len;
+			py /= len;
+			pz /= len;
+			double d = -(px * coords[v1 * 3] + py * coords[v1 * 3 + 1] + pz
+					* coords[v1 * 3 + 2]);
+			addPlane(v1, px, py, pz, d, BORDER_WEIGHT);
+			addPlane(v2, px, py, pz, d, BORDER_WEIGHT);
+		}
+	}
+
+	/**
+	 * Computes the unit normal of the triangle with the given vertices.
+	 * 
+	 * @return false, if the triangle is degenerate
+	 */
+	private boolean computeNormal(int a, int b, int c, double[] n) {
+		return computeNormal(coords[a * 3], coords[a * 3 + 1],
+				coords[a * 3 + 2], b, c, n);
+	}
+
+	private boolean computeNormal(double ax, double ay, double az, int b,
+			int c, double[] n) {
+		double ux = coords[b * 3] - ax;
+		double uy = coords[b * 3 + 1] - ay;
+		double uz = coords[b * 3 + 2] - az;
+		double vx = coords[c * 3] - ax;
+		double vy = coords[c * 3 + 1] - ay;
+		double vz = coords[c * 3 + 2] - az;
+		double nx = uy * vz - uz * vy;
+		double ny = uz * vx - ux * vz;
+		double nz = ux * vy - uy * vx;
+		double len = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (len == 0) {
+			return false;
+		}
+		n[0] = nx / len;
+		n[1] = ny / len;
+		n[2] = nz / len;
+		return true;
+	}
+
+	/**
+	 * Creates a new mesh from all remaining faces.
+	 */
+	private WETriangleMesh createMesh(String name) {
+		Vec3D[] vertices = new Vec3D[versions.length];
+		WETriangleMesh mesh = new WETriangleMesh(name);
+		for (int f = 0; f < isFaceRemoved.length; f++) {
+			if (!isFaceRemoved[f]) {
+				int fi = f * 3;
+				mesh.addFace(getVertex(vertices, faces[fi]),
+						getVertex(vertices, faces[fi + 1]),
+						getVertex(vertices, faces[fi + 2]));
+			}
+		}
+		return mesh;
+	}
+
+	/**
+	 * Finds the position minimizing the given quadric. If the quadric is
+	 * singular, the best of the two edge vertices & the edge midpoint is used.
+	 * 
+	 * @param q
+	 *            quadric
+	 * @param a
+	 *            edge start vertex
+	 * @param b
+	 *            edge end vertex
+	 * @param result
+	 *            array receiving the position & error
+	 */
+	private void findPosition(double[] q, int a, int b, double[] result) {
+		double a00 = q[0], a01 = q[1], a02 = q[2];
+		double a11 = q[4], a12 = q[5], a22 = q[7];
+		double c00 = a11 * a22 - a12 * a12;
+		double c01 = a02 * a12 - a01 * a22;
+		double c02 = a01 * a12 - a02 * a11;
+		double det = a00 * c00 + a01 * c01 + a02 * c02;
+		double scale = a00 + a11 + a22;
+		if (Math.abs(det) > SINGULAR_THRESHOLD * scale * scale * scale) {
+			double c11 = a00 * a22 - a02 * a02;
+			double c12 = a01 * a02 - a00 * a12;
+			double c22 = a00 * a11 - a01 * a01;
+			double bx = -q[3], by = -q[6], bz = -q[8];
+			result[0] = (c00 * bx + c01 * by + c02 * bz) / det;
+			result[1] = (c01 * bx + c11 * by + c12 * bz) / det;
+			result[2] = (c02 * bx + c12 * by + c22 * bz) / det;
+			result[3] = getError(q, result[0], result[1], result[2]);
+			return;
+		}
+		result[3] = Double.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			double t = i * 0.5;
+			double x = coords[a * 3] + (coords[b * 3] - coords[a * 3]) * t;
+			double y = coords[a * 3 + 1]
+					+ (coords[b * 3 + 1] - coords[a * 3 + 1]) * t;
+			double z = coords[a * 3 + 2]
+					+ (coords[b * 3 + 2] - coords[a * 3 + 2]) * t;
+			double err = getError(q, x, y, z);
+			if (err < result[3]) {
+				result[0] = x;
+				result[1] = y;
+				result[2] = z;
+				result[3] = err;
+			}
+		}
+	}
+
+	private static double getError(double[] q, double x, double y, double z) {
+		double err = q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2
+				* q[3] * x + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y
+				+ q[7] * z * z + 2 * q[8] * z + q[9];
+		return Math.max(err, 0);
+	}
+
+	private Vec3D getVertex(Vec3D[] vertices, int v) {
+		Vec3D vertex = vertices[v];
+		if (vertex == null) {
+			vertex = vertices[v] = new Vec3D((float) coords[v * 3],
+					(float) coords[v * 3 + 1], (float) coords[v * 3 + 2]);
+		}
+		return vertex;
+	}
+
+	/**
+	 * @return true, if any face of vertex a contains the directed edge a->b
+	 */
+	private boolean hasEdge(int a, int b) {
+		int[] list = vertexFaces[a];
+		for (int i = 0, num = numVertexFaces[a]; i < num; i++) {
+			int f = list[i];
+			if (!isFaceRemoved[f]) {
+				int fi = f * 3;
+				for (int j = 0; j < 3; j++) {
+					if (faces[fi + j] == a && faces[fi + (j + 1) % 3] == b) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if the given collapse preserves the mesh topology (the edge
+	 * vertices must share exactly two neighbours, i.e. the link condition)
+	 * and doesn't flip the orientation of any remaining face.
+	 */
+	private boolean isCollapseValid(Collapse c) {
+		int a = c.a, b = c.b;
+		compactFaceList(a);
+		compactFaceList(b);
+		int numShared = 0;
+		int numCommon = 0;
+		int[] listB = vertexFaces[b];
+		for (int i = 0, num = numVertexFaces[b]; i < num; i++) {
+			int fi = listB[i] * 3;
+			if (faces[fi] == a || faces[fi + 1] == a || faces[fi + 2] == a) {
+				numShared++;
+			}
+		}
+		// count vertices adjacent to both a & b
+		int[] listA = vertexFaces[a];
+		for (int i = 0, num = numVertexFaces[a]; i < num; i++) {
+			int fi = listA[i] * 3;
+			for (int j = 0; j < 3; j++) {
+				int v = faces[fi + j];
+				if (v != a && v != b && isFirstFaceWithEdge(a, v, listA[i])
+						&& isNeighbour(b, v)) {
+					numCommon++;
+				}
+			}
+		}
+		if (numShared != 2 || numCommon != 2) {
+			return false;
+		}
+		return !isFlipped(a, b, c) && !isFlipped(b, a, c);
+	}
+
+	/**
+	 * @return true, if the given face is the first face (in the face list of
+	 *         vertex a) containing the edge a-v (used to visit each neighbour
+	 *         only once)
+	 */
+	private boolean isFirstFaceWithEdge(int a, int v, int face) {
+		int[] list = vertexFaces[a];
+		for (int i = 0, num = numVertexFaces[a]; i < num; i++) {
+			int fi = list[i] * 3;
+			if (!isFaceRemoved[list[i]]
+					&& (faces[fi] == v || faces[fi + 1] == v || faces[fi + 2] == v)) {
+				return list[i] == face;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if moving vertex v to the collapse position would flip any of
+	 * its faces (other than the ones shared with vertex other).
+	 */
+	private boolean isFlipped(int v, int other, Collapse c) {
+		double[] n0 = oldNormal;
+		double[] n1 = newNormal;
+		int[] list = vertexFaces[v];
+		for (int i = 0, num = numVertexFaces[v]; i < num; i++) {
+			int fi = list[i] * 3;
+			if (faces[fi] == other || faces[fi + 1] == other
+					|| faces[fi + 2] == other) {
+				continue;
+			}
+			// rotate face so that v comes first
+			int j = faces[fi] == v ? 0 : (faces[fi + 1] == v ? 1 : 2);
+			int p = faces[fi + (j + 1) % 3];
+			int q = faces[fi + (j + 2) % 3];
+			if (!computeNormal(v, p, q, n0)) {
+				// already degenerate
+				continue;
+			}
+			if (!computeNormal(c.x, c.y, c.z, p, q, n1)
+					|| n0[0] * n1[0] + n0[1] * n1[1] + n0[2] * n1[2] < 0.2) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true, if vertices a & v share a face
+	 */
+	private boolean isNeighbour(int a, int v) {
+		int[] list = vertexFaces[a];
+		for (int i = 0, num = numVertexFaces[a]; i < num; i++) {
+			int fi = list[i] * 3;
+			if (!isFaceRemoved[list[i]]
+					&& (faces[fi] == v || faces[fi + 1] == v || faces[fi + 2] == v)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,361 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.Arrays;
+import java.util.List;
+
+import toxi.geom.Rect;
+import toxi.geom.Vec2D;
+import toxi.physics2d.VerletParticle2D;
+
+/**
+ * Grid based (spatial hash) repulsion between all particles of a system. This
+ * is a replacement for registering one {@link toxi.physics2d.behaviors.AttractionBehavior2D}
+ * with negative strength per particle, which causes every particle to be
+ * checked against every other one (i.e. O(N^2) per simulation step).
+ * 
+ * Instead, all particle positions are sorted into a uniform grid of cells
+ * whose size matches the repulsion radius. That way only particles in the
+ * same or the 8 neighbouring cells need to be checked. The force falloff is
+ * identical to the one used by AttractionBehavior2D, so the relaxation result
+ * of the particle system stays the same.
+ */
+public class SpatialHashSeparation {
+
+	/**
+	 * Upper limit for the number of grid cells along each axis. Used to avoid
+	 * huge grids for tiny separation distances.
+	 */
+	public static final int MAX_CELLS_PER_AXIS = 256;
+
+	/**
+	 * Area covered by the grid. Positions outside are clamped into the
+	 * outermost cells.
+	 */
+	private final Rect bounds;
+
+	/**
+	 * Repulsion radius and its square
+	 */
+	private float radius, radiusSquared;
+
+	/**
+	 * Force strength (negative values = repulsion)
+	 */
+	private float strength;
+
+	/**
+	 * Current grid layout
+	 */
+	private int cols, rows;
+	private float invCellSize;
+
+	/**
+	 * Snapshot of particle positions taken in {@link #build(List)}
+	 */
+	private float[] posX = new float[0], posY = new float[0];
+
+	/**
+	 * Cell ID of each particle
+	 */
+	private int[] particleCell = new int[0];
+
+	/**
+	 * Particle indices sorted by cell ID. Particles of cell i are stored in
+	 * the range cellStart[i] ... cellStart[i+1]-1
+	 */
+	private int[] sortedIndices = new int[0];
+	private int[] cellStart = new int[0];
+
+	/**
+	 * Number of particles in the current snapshot
+	 */
+	private int numParticles;
+
+	/**
+	 * Reusable force vector passed to {@link VerletParticle2D#addForce(Vec2D)}
+	 */
+	private final Vec2D force = new Vec2D();
+
+	/**
+	 * Force buffers used by {@link #apply(List, float)}
+	 */
+	private float[] forceX = new float[0], forceY = new float[0];
+
+	/**
+	 * Creates a new instance for the given world bounds.
+	 * 
+	 * @param bounds
+	 *            area covered by the grid
+	 * @param radius
+	 *            repulsion radius
+	 * @param strength
+	 *            force strength (use negative values for repulsion)
+	 */
+	public SpatialHashSeparation(Rect bounds, float radius, float strength) {
+		this.bounds = bounds;
+		this.strength = strength;
+		setRadius(radius);
+	}
+
+	/**
+	 * Computes repulsion forces for all particles in the given list and adds
+	 * them to each particle's force accumulator. Must be called before the
+	 * physics engine updates/integrates the particles.
+	 * 
+	 * @param particles
+	 * @param timeStep
+	 *            time step of physics engine
+	 */
+	public void apply(List<VerletParticle2D> particles, float timeStep) {
+		build(particles);
+		if (forceX.length < numParticles) {
+			forceX = new float[numParticles];
+			forceY = new float[numParticles];
+		}
+		computeForces(0, numParticles, timeStep, forceX, forceY);
+		for (int i = 0; i < numParticles; i++) {
+			particles.get(i).addForce(force.set(forceX[i], forceY[i]));
+		}
+	}
+
+	/**
+	 * Takes a snapshot of all particle positions and sorts them into the grid
+	 * (using a counting sort in order to avoid per cell lists).
+	 * 
+	 * @param particles
+	 */
+	public void build(List<? extends Vec2D> particles) {
+		int num = particles.size();
+		ensureCapacity(num);
+		for (int i = 0; i < num; i++) {
+			Vec2D p = particles.get(i);
+			posX[i] = p.x;
+			posY[i] = p.y;
+		}
+		build(posX, posY, num);
+	}
+
+	/**
+	 * Sorts the given positions into the grid. The arrays are used directly
+	 * (not copied) and must not be modified until force computation has
+	 * completed.
+	 * 
+	 * @param x
+	 *            x coordinates
+	 * @param y
+	 *            y coordinates
+	 * @param num
+	 *            number of positions to use
+	 */
+	public void build(float[] x, float[] y, int num) {
+		if (x != posX) {
+			ensureCapacity(num);
+			System.arraycopy(x, 0, posX, 0, num);
+			System.arraycopy(y, 0, posY, 0, num);
+		}
+		numParticles = num;
+		int numCells = cols * rows;
+		if (cellStart.length != numCells + 1) {
+			cellStart = new int[numCells + 1];
+		} else {
+			Arrays.fill(cellStart, 0);
+		}
+		// count particles per cell
+		for (int i = 0; i < num; i++) {
+			int id = getCellID(posX[i], posY[i]);
+			particleCell[i] = id;
+			cellStart[id + 1]++;
+		}
+		// prefix sum to compute start offsets of each cell
+		for (int i = 1; i <= numCells; i++) {
+			cellStart[i] += cellStart[i - 1];
+		}
+		// distribute particle indices (stable, so that neighbour iteration
+		// order is deterministic)
+		for (int i = 0; i < num; i++) {
+			int id = particleCell[i];
+			sortedIndices[cellStart[id]++] = i;
+		}
+		// the previous loop shifted all start offsets by one cell, restore
+		for (int i = numCells; i > 0; i--) {
+			cellStart[i] = cellStart[i - 1];
+		}
+		cellStart[0] = 0;
+	}
+
+	/**
+	 * Computes the accumulated repulsion forces for the particles in the given
+	 * index range using the current grid snapshot. Force values are written
+	 * (not added) to the given arrays. Only reads shared state, so this method
+	 * can be called concurrently for disjoint index ranges.
+	 * 
+	 * @param from
+	 *            first particle index (inclusive)
+	 * @param to
+	 *            last particle index (exclusive)
+	 * @param timeStep
+	 *            time step of physics engine
+	 * @param fx
+	 *            result x components
+	 * @param fy
+	 *            result y components
+	 */
+	public void computeForces(int from, int to, float timeStep, float[] fx,
+			float[] fy) {
+		final float scaledStrength = strength * timeStep;
+		for (int i = from; i < to; i++) {
+			float px = posX[i];
+			float py = posY[i];
+			float sumX = 0, sumY = 0;
+			if (radiusSquared > 0) {
+				int cell = particleCell[i];
+				int cx = cell % cols;
+				int cy = cell / cols;
+				int minX = Math.max(cx - 1, 0);
+				int maxX = Math.min(cx + 1, cols - 1);
+				int minY = Math.max(cy - 1, 0);
+				int maxY = Math.min(cy + 1, rows - 1);
+				for (int y = minY; y <= maxY; y++) {
+					int rowOffset = y * cols;
+					for (int x = minX; x <= maxX; x++) {
+						int id = rowOffset + x;
+						for (int k = cellStart[id], end = cellStart[id + 1]; k < end; k++) {
+							int j = sortedIndices[k];
+							// same falloff as AttractionBehavior2D with the
+							// other particle acting as attractor
+							float dx = posX[j] - px;
+							float dy = posY[j] - py;
+							float distSq = dx * dx + dy * dy;
+							if (distSq < radiusSquared && distSq > 0) {
+								float f = (1 - distSq / radiusSquared)
+										* scaledStrength / (float) Math.sqrt(distSq);
+								sumX += dx * f;
+								sumY += dy * f;
+							}
+						}
+					}
+				}
+			}
+			fx[i] = sumX;
+			fy[i] = sumY;
+		}
+	}
+
+	/**
+	 * Grows internal buffers to hold at least the given number of particles.
+	 * 
+	 * @param num
+	 */
+	private void ensureCapacity(int num) {
+		if (posX.length < num) {
+			int size = Math.max(num, posX.length * 3 / 2);
+			float[] x = new float[size];
+			float[] y = new float[size];
+			System.arraycopy(posX, 0, x, 0, posX.length);
+			System.arraycopy(posY, 0, y, 0, posY.length);
+			posX = x;
+			posY = y;
+			particleCell = new int[size];
+			sortedIndices = new int[size];
+		}
+	}
+
+	/**
+	 * Maps a position to its grid cell. Positions outside the bounds are
+	 * clamped to the nearest border cell.
+	 * 
+	 * @param x
+	 * @param y
+	 * @return cell ID
+	 */
+	private int getCellID(float x, float y) {
+		int cx = (int) ((x - bounds.x) * invCellSize);
+		int cy = (int) ((y - bounds.y) * invCellSize);
+		cx = cx < 0 ? 0 : (cx >= cols ? cols - 1 : cx);
+		cy = cy < 0 ? 0 : (cy >= rows ? rows - 1 : cy);
+		return cy * cols + cx;
+	}
+
+	/**
+	 * @return number of particles in current snapshot
+	 */
+	public int getNumParticles() {
+		return numParticles;
+	}
+
+	/**
+	 * @return repulsion radius
+	 */
+	public float getRadius() {
+		return radius;
+	}
+
+	/**
+	 * @return force strength
+	 */
+	public float getStrength() {
+		return strength;
+	}
+
+	/**
+	 * Updates the repulsion radius and recomputes the grid layout. Cell size
+	 * is at least the radius so that only direct neighbour cells need to be
+	 * checked.
+	 * 
+	 * @param r
+	 *            new radius
+	 */
+	public void setRadius(float r) {
+		radius = r;
+		radiusSquared = r * r;
+		float maxSide = Math.max(bounds.width, bounds.height);
+		float cellSize = Math.max(r, maxSide / MAX_CELLS_PER_AXIS);
+		if (cellSize <= 0) {
+			cellSize = 1;
+		}
+		invCellSize = 1f / cellSize;
+		cols = Math.max((int) (bounds.width * invCellSize) + 1, 1);
+		rows = Math.max((int) (bounds.height * invCellSize) + 1, 1);
+	}
+
+	/**
+	 * Sets the force strength. Negative values cause repulsion.
+	 * 
+	 * @param s
+	 */
+	public void setStrength(float s) {
+		strength = s;
+	}
+}
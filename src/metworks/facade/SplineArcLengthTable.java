@@ -0,0 +1,285 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.util.List;
+
+import toxi.geom.Spline2D;
+import toxi.geom.Vec2D;
+
+/**
+ * Arc length parameterisation of a {@link Spline2D}, stored in flat primitive
+ * arrays. The curve is resampled at (roughly) uniform distances along its
+ * length and for each sample the position and the unit normal (the tangent
+ * rotated by 90 degrees) are precomputed. Lookups with a normalized curve
+ * position then only need to interpolate between two neighbouring samples,
+ * which takes constant time and doesn't allocate any objects.
+ * 
+ * Since splines don't provide any change notifications, the table keeps a
+ * copy of the control points it was built from and {@link #update(Spline2D)}
+ * only rebuilds it if these (or the spline's tightness) have changed.
+ */
+public class SplineArcLengthTable {
+
+	/**
+	 * Default number of curve subdivisions per spline segment used to measure
+	 * the arc length
+	 */
+	public static final int DEFAULT_CURVE_RES = 20;
+
+	/**
+	 * Default distance between samples
+	 */
+	public static final float DEFAULT_SAMPLE_DIST = 1;
+
+	private final int curveRes;
+	private final float sampleDist;
+
+	/**
+	 * Sample positions & unit normals
+	 */
+	private float[] x, y, normalX, normalY;
+
+	/**
+	 * Number of samples currently stored
+	 */
+	private int numSamples;
+
+	private float length;
+	private float centroidX, centroidY;
+
+	/**
+	 * Control point coordinates & tightness of the spline the table has been
+	 * built from
+	 */
+	private float[] controlPoints;
+	private float tightness;
+
+	/**
+	 * Creates a new table using the default curve resolution & sample
+	 * distance.
+	 */
+	public SplineArcLengthTable() {
+		this(DEFAULT_CURVE_RES, DEFAULT_SAMPLE_DIST);
+	}
+
+	/**
+	 * @param curveRes
+	 *            number of curve subdivisions per spline segment
+	 * @param sampleDist
+	 *            distance between samples along the curve
+	 */
+	public SplineArcLengthTable(int curveRes, float sampleDist) {
+		this.curveRes = curveRes;
+		this.sampleDist = sampleDist;
+	}
+
+	/**
+	 * Checks if the given spline's control points or tightness differ from
+	 * the ones this table has been built from.
+	 * 
+	 * @param spline
+	 * @return true, if table is outdated
+	 */
+	public boolean hasChanged(Spline2D spline) {
+		List<Vec2D> points = spline.getPointList();
+		if (controlPoints == null || controlPoints.length != points.size() * 2
+				|| tightness != spline.getTightness()) {
+			return true;
+		}
+		for (int i = 0, j = 0, num = points.size(); i < num; i++) {
+			Vec2D p = points.get(i);
+			if (controlPoints[j++] != p.x || controlPoints[j++] != p.y) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Computes position & normal at the given normalized curve position by
+	 * linearly interpolating the two nearest samples. The interpolated normal
+	 * is renormalized.
+	 * 
+	 * @param t
+	 *            position along the curve (0.0 = start, 1.0 = end), values
+	 *            outside this range are clamped
+	 * @param result
+	 *            array to store x, y, normal x, normal y (min. length 4)
+	 * @return result array
+	 */
+	public float[] lookup(float t, float[] result) {
+		int last = numSamples - 1;
+		float pos = t * last;
+		int i;
+		float f;
+		if (pos <= 0) {
+			i = 0;
+			f = 0;
+		} else if (pos >= last) {
+			i = last - 1;
+			f = 1;
+		} else {
+			i = (int) pos;
+			f = pos - i;
+		}
+		int j = i + 1;
+		result[0] = x[i] + (x[j] - x[i]) * f;
+		result[1] = y[i] + (y[j] - y[i]) * f;
+		float nx = normalX[i] + (normalX[j] - normalX[i]) * f;
+		float ny = normalY[i] + (normalY[j] - normalY[i]) * f;
+		float mag = (float) Math.sqrt(nx * nx + ny * ny);
+		if (mag > 0) {
+			nx /= mag;
+			ny /= mag;
+		}
+		result[2] = nx;
+		result[3] = ny;
+		return result;
+	}
+
+	/**
+	 * Rebuilds the table for the given spline: measures the arc length of the
+	 * subdivided curve, resamples it at uniform distances and computes the
+	 * normal of each sample from its neighbours.
+	 * 
+	 * @param spline
+	 *            spline with at least 2 control points
+	 */
+	public void rebuild(Spline2D spline) {
+		List<Vec2D> points = spline.getPointList();
+		controlPoints = new float[points.size() * 2];
+		for (int i = 0, j = 0; i < points.size(); i++) {
+			Vec2D p = points.get(i);
+			controlPoints[j++] = p.x;
+			controlPoints[j++] = p.y;
+		}
+		tightness = spline.getTightness();
+		List<Vec2D> curve = spline.toLineStrip2D(curveRes).getVertices();
+		int numCurve = curve.size();
+		// cumulative arc length at each curve vertex
+		float[] arcLength = new float[numCurve];
+		for (int i = 1; i < numCurve; i++) {
+			arcLength[i] = arcLength[i - 1]
+					+ curve.get(i).distanceTo(curve.get(i - 1));
+		}
+		length = arcLength[numCurve - 1];
+		numSamples = Math.max((int) Math.ceil(length / sampleDist), 1) + 1;
+		if (x == null || x.length < numSamples) {
+			x = new float[numSamples];
+			y = new float[numSamples];
+			normalX = new float[numSamples];
+			normalY = new float[numSamples];
+		}
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		float delta = length / (numSamples - 1);
+		for (int i = 0, seg = 1; i < numSamples; i++) {
+			float s = i * delta;
+			while (seg < numCurve - 1 && arcLength[seg] < s) {
+				seg++;
+			}
+			Vec2D a = curve.get(seg - 1);
+			Vec2D b = curve.get(seg);
+			float segLength = arcLength[seg] - arcLength[seg - 1];
+			float f = segLength > 0 ? (s - arcLength[seg - 1]) / segLength : 0;
+			f = f < 0 ? 0 : (f > 1 ? 1 : f);
+			x[i] = a.x + (b.x - a.x) * f;
+			y[i] = a.y + (b.y - a.y) * f;
+			minX = Math.min(minX, x[i]);
+			minY = Math.min(minY, y[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+		}
+		centroidX = (minX + maxX) * 0.5f;
+		centroidY = (minY + maxY) * 0.5f;
+		// normals from central differences (one sided at both ends)
+		for (int i = 0; i < numSamples; i++) {
+			int prev = Math.max(i - 1, 0);
+			int next = Math.min(i + 1, numSamples - 1);
+			float dx = x[next] - x[prev];
+			float dy = y[next] - y[prev];
+			float mag = (float) Math.sqrt(dx * dx + dy * dy);
+			if (mag > 0) {
+				dx /= mag;
+				dy /= mag;
+			}
+			// perpendicular of tangent
+			normalX[i] = -dy;
+			normalY[i] = dx;
+		}
+	}
+
+	/**
+	 * Rebuilds the table if the given spline has changed since the last
+	 * update.
+	 * 
+	 * @param spline
+	 * @return true, if the table has been rebuilt
+	 */
+	public boolean update(Spline2D spline) {
+		if (hasChanged(spline)) {
+			rebuild(spline);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return x coordinate of the centre of the curve's bounding rect
+	 */
+	public float getCentroidX() {
+		return centroidX;
+	}
+
+	/**
+	 * @return y coordinate of the centre of the curve's bounding rect
+	 */
+	public float getCentroidY() {
+		return centroidY;
+	}
+
+	/**
+	 * @return total arc length of the curve
+	 */
+	public float getLength() {
+		return length;
+	}
+
+	/**
+	 * @return number of samples
+	 */
+	public int getNumSamples() {
+		return numSamples;
+	}
+}
@@ -0,0 +1,359 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package metworks.facade;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Lightweight per-frame instrumentation of named stages (e.g. physics,
+ * shape computation, drawing). Each {@link Timer} measures the elapsed time
+ * and (if supported by the JVM) the number of bytes allocated by the calling
+ * thread between {@link Timer#start()} and {@link Timer#stop()}. All
+ * measurements taken during a frame are summed up and committed by
+ * {@link #endFrame()} into a ring buffer holding the last N frames in which
+ * the stage has been run, from which rolling percentiles are computed.
+ * 
+ * Allocations are tracked via <code>ThreadMXBean</code> and so only include
+ * the thread calling start/stop, not any work delegated to the
+ * {@link ParallelTasks} pool. Timers can be used from multiple threads (e.g.
+ * by the {@link BackgroundMeshBuilder}), as long as each timer is only
+ * started and stopped on the same thread.
+ */
+public class StageMetrics {
+
+	/**
+	 * Timer & sample history of a single stage.
+	 */
+	public static class Timer {
+
+		private final String name;
+		private final StageMetrics metrics;
+
+		/**
+		 * Ring buffers of the last N samples: frame number, time (ns) &
+		 * allocated bytes (-1 = unknown)
+		 */
+		private final long[] frames, times, bytes;
+		private int numSamples, nextSample;
+
+		/**
+		 * Accumulated values of the current frame
+		 */
+		private long frameTime, frameBytes;
+		private boolean hasRunInFrame;
+
+		private long startTime, startBytes;
+
+		private Timer(StageMetrics metrics, String name, int numFrames) {
+			this.metrics = metrics;
+			this.name = name;
+			frames = new long[numFrames];
+			times = new long[numFrames];
+			bytes = new long[numFrames];
+		}
+
+		/**
+		 * Adds the current frame's values to the history (if the stage has
+		 * been run during the frame).
+		 * 
+		 * @param frame
+		 *            frame number
+		 */
+		private synchronized void commit(long frame) {
+			if (hasRunInFrame) {
+				frames[nextSample] = frame;
+				times[nextSample] = frameTime;
+				bytes[nextSample] = frameBytes;
+				nextSample = (nextSample + 1) % times.length;
+				numSamples = Math.min(numSamples + 1, times.length);
+				frameTime = 0;
+				frameBytes = 0;
+				hasRunInFrame = false;
+			}
+		}
+
+		/**
+		 * @return stage name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return number of samples in the history
+		 */
+		public synchronized int getNumSamples() {
+			return numSamples;
+		}
+
+		/**
+		 * Computes the given percentile of the allocated bytes per frame.
+		 * 
+		 * @param p
+		 *            percentile (0.0 ... 1.0)
+		 * @return allocated bytes (or -1, if unknown or no samples yet)
+		 */
+		public synchronized long getBytesPercentile(float p) {
+			return percentile(bytes, p);
+		}
+
+		/**
+		 * Computes the given percentile of the time spent per frame.
+		 * 
+		 * @param p
+		 *            percentile (0.0 ... 1.0)
+		 * @return time in ns (or -1, if there're no samples yet)
+		 */
+		public synchronized long getTimePercentile(float p) {
+			return percentile(times, p);
+		}
+
+		private long percentile(long[] values, float p) {
+			if (numSamples == 0) {
+				return -1;
+			}
+			long[] sorted = Arrays.copyOf(values, numSamples);
+			Arrays.sort(sorted);
+			int idx = (int) Math.ceil(p * numSamples) - 1;
+			return sorted[Math.max(Math.min(idx, numSamples - 1), 0)];
+		}
+
+		/**
+		 * Starts a measurement.
+		 */
+		public void start() {
+			startBytes = metrics.getAllocatedBytes();
+			startTime = System.nanoTime();
+		}
+
+		/**
+		 * Ends the measurement started via {@link #start()} and adds the
+		 * results to the current frame.
+		 */
+		public void stop() {
+			long time = System.nanoTime() - startTime;
+			long allocated = metrics.getAllocatedBytes();
+			synchronized (this) {
+				frameTime += time;
+				if (allocated >= 0 && startBytes >= 0 && frameBytes >= 0) {
+					frameBytes += allocated - startBytes;
+				} else {
+					frameBytes = -1;
+				}
+				hasRunInFrame = true;
+			}
+		}
+
+		/**
+		 * Appends all samples (oldest first) as CSV rows to the given writer.
+		 * 
+		 * @param out
+		 */
+		private synchronized void writeCSV(PrintWriter out) {
+			int first = (nextSample - numSamples + times.length) % times.length;
+			for (int i = 0; i < numSamples; i++) {
+				int j = (first + i) % times.length;
+				out.println(String.format(Locale.US, "%d,%s,%.4f,%d",
+						frames[j], name, times[j] / 1e6, bytes[j]));
+			}
+		}
+	}
+
+	/**
+	 * Default number of frames used for the rolling statistics
+	 */
+	public static final int DEFAULT_NUM_FRAMES = 300;
+
+	private final int numFrames;
+
+	/**
+	 * All timers in order of creation
+	 */
+	private final Map<String, Timer> timers = new LinkedHashMap<String, Timer>();
+
+	/**
+	 * Allocation counter or null, if not supported
+	 */
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	private long frameCount;
+
+	/**
+	 * Creates a new instance using {@link #DEFAULT_NUM_FRAMES}.
+	 */
+	public StageMetrics() {
+		this(DEFAULT_NUM_FRAMES);
+	}
+
+	/**
+	 * @param numFrames
+	 *            number of frames used for rolling statistics
+	 */
+	public StageMetrics(int numFrames) {
+		this.numFrames = numFrames;
+		com.sun.management.ThreadMXBean bean = null;
+		try {
+			java.lang.management.ThreadMXBean b = ManagementFactory
+					.getThreadMXBean();
+			if (b instanceof com.sun.management.ThreadMXBean) {
+				bean = (com.sun.management.ThreadMXBean) b;
+				if (bean.isThreadAllocatedMemorySupported()) {
+					bean.setThreadAllocatedMemoryEnabled(true);
+				} else {
+					bean = null;
+				}
+			}
+		} catch (LinkageError e) {
+			// not available on this JVM
+		} catch (UnsupportedOperationException e) {
+			bean = null;
+		}
+		threadBean = bean;
+	}
+
+	/**
+	 * Commits the measurements of all timers for the current frame and
+	 * starts a new frame.
+	 */
+	public void endFrame() {
+		for (Timer t : getTimers()) {
+			t.commit(frameCount);
+		}
+		frameCount++;
+	}
+
+	/**
+	 * @return bytes allocated by the current thread so far (or -1, if
+	 *         unknown)
+	 */
+	private long getAllocatedBytes() {
+		return threadBean != null ? threadBean.getThreadAllocatedBytes(Thread
+				.currentThread().getId()) : -1;
+	}
+
+	/**
+	 * @return number of frames ended so far
+	 */
+	public long getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Formats a summary of all timers with their rolling median & 99th
+	 * percentile time and allocations per frame.
+	 * 
+	 * @return multi-line summary text
+	 */
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%-24s %8s %8s %9s %9s\n",
+				"stage", "p50 ms", "p99 ms", "p50 kb", "p99 kb"));
+		for (Timer t : getTimers()) {
+			if (t.getNumSamples() > 0) {
+				sb.append(String.format(Locale.US,
+						"%-24s %8.2f %8.2f %9s %9s\n", t.getName(),
+						t.getTimePercentile(0.5f) / 1e6,
+						t.getTimePercentile(0.99f) / 1e6,
+						formatBytes(t.getBytesPercentile(0.5f)),
+						formatBytes(t.getBytesPercentile(0.99f))));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String formatBytes(long bytes) {
+		return bytes >= 0 ? String.format(Locale.US, "%.1f", bytes / 1024.0)
+				: "-";
+	}
+
+	/**
+	 * Returns the timer for the given stage, creating it if necessary.
+	 * 
+	 * @param name
+	 *            stage name
+	 * @return timer
+	 */
+	public synchronized Timer getTimer(String name) {
+		Timer t = timers.get(name);
+		if (t == null) {
+			t = new Timer(this, name, numFrames);
+			timers.put(name, t);
+		}
+		return t;
+	}
+
+	/**
+	 * @return snapshot of all timers
+	 */
+	public synchronized List<Timer> getTimers() {
+		return new ArrayList<Timer>(timers.values());
+	}
+
+	/**
+	 * @return true, if allocations are tracked
+	 */
+	public boolean isTrackingAllocations() {
+		return threadBean != null;
+	}
+
+	/**
+	 * Saves the sample history of all timers as CSV file with one row per
+	 * stage & frame (allocated bytes are -1 if unknown).
+	 * 
+	 * @param path
+	 * @throws IOException
+	 */
+	public void saveAsCSV(String path) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(path));
+		try {
+			out.println("frame,stage,time_ms,alloc_bytes");
+			for (Timer t : getTimers()) {
+				t.writeCSV(out);
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("error writing metrics: " + path);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/* 
+ *                 __                       __            
+ *   _____   _____/  |___  _  _____________|  | __  ______
+ *  /     \_/ __ \   __\ \/ \/ /  _ \_  __ \  |/ / /  ___/
+ * |  Y Y  \  ___/|  |  \     (  <_> )  | \/    <  \___ \ 
+ * |__|_|  /\___  >__|   \/\_/ \____/|__|  |__|_ \/____  >
+ *       \/     \/                              \/     \/ 
+ *   _____                          .___      
+ * _/ ____\____    ____ _____     __| _/____    Processing and
+ * \   __\\__  \ _/ ___\\__  \   / __ |/ __ \   toxiclibs workshop
+ *  |  |   / __ \\  \___ / __ \_/ /_/ \  ___/   at Metropolitan Works
+ *  |__|  (____  /\___  >____  /\____ |\___  >  London, December 2011
+ *             \/     \/     \/      \/    \/ 
+ *
+ * Copyright (c) 2011 Karsten Schmidt
+ * 
+ * This software is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ * 
+ * http://creativecommons.org/licenses/LGPL/2.1/
+ * 
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+
+package metworks.facade;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import toxi.geom.Vec3D;
+
+/**
+ * Binary STL writer which writes triangles straight to a file channel as they
+ * are received, so that (unlike {@link toxi.geom.mesh.TriangleMesh#saveAsSTL})
+ * no mesh needs to be built first. Since the number of triangles isn't known
+ * in advance, a placeholder count is written into the file header and patched
+ * when the writer is closed. Memory usage is constant (the size of the write
+ * buffer).
+ * 
+ * Triangles are written with the same vertex order & normal as the default
+ * {@link toxi.geom.mesh.TriangleMesh#saveAsSTL(String)} would write the
+ * corresponding mesh face (i.e. for a face created via
+ * <code>mesh.addFace(a, b, c)</code>).
+ * 
+ * Since {@link #addTriangle(Vec3D, Vec3D, Vec3D)} can't throw checked
+ * exceptions, write errors are recorded and re-thrown by {@link #close()}.
+ */
+public class StreamingSTLWriter implements TriangleConsumer {
+
+	/**
+	 * Size of the file header (excluding triangle count)
+	 */
+	private static final int HEADER_SIZE = 80;
+
+	/**
+	 * Size of a single triangle record: normal, 3 vertices, attribute
+	 */
+	private static final int TRIANGLE_SIZE = 4 * 12 + 2;
+
+	/**
+	 * Number of triangles buffered before writing to the channel
+	 */
+	private static final int BUFFER_TRIANGLES = 4096;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+
+	private int numTriangles;
+	private IOException error;
+
+	/**
+	 * Creates a new file (or truncates an existing one) at the given path and
+	 * writes the file header.
+	 * 
+	 * @param path
+	 * @throws IOException
+	 */
+	public StreamingSTLWriter(String path) throws IOException {
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		buffer = ByteBuffer.allocateDirect(BUFFER_TRIANGLES * TRIANGLE_SIZE);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		byte[] header = new byte[HEADER_SIZE];
+		byte[] id = "metworks facade".getBytes("US-ASCII");
+		System.arraycopy(id, 0, header, 0, id.length);
+		buffer.put(header);
+		// placeholder for triangle count, patched in close()
+		buffer.putInt(0);
+	}
+
+	/**
+	 * Adds a triangle, computing its normal in the same way as
+	 * {@link toxi.geom.mesh.Face#computeNormal()}.
+	 */
+	@Override
+	public void addTriangle(Vec3D a, Vec3D b, Vec3D c) {
+		if (error != null) {
+			return;
+		}
+		if (buffer.remaining() < TRIANGLE_SIZE) {
+			flush();
+		}
+		// normal = (a - c) x (a - b)
+		float ux = a.x - c.x, uy = a.y - c.y, uz = a.z - c.z;
+		float vx = a.x - b.x, vy = a.y - b.y, vz = a.z - b.z;
+		float nx = uy * vz - vy * uz;
+		float ny = uz * vx - vz * ux;
+		float nz = ux * vy - vx * uy;
+		float mag = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (mag > 0) {
+			mag = 1f / mag;
+			nx *= mag;
+			ny *= mag;
+			nz *= mag;
+		}
+		buffer.putFloat(nx).putFloat(ny).putFloat(nz);
+		putVertex(b);
+		putVertex(a);
+		putVertex(c);
+		buffer.putShort((short) 0);
+		numTriangles++;
+	}
+
+	/**
+	 * Writes all remaining buffered triangles, updates the triangle count in
+	 * the header and closes the file.
+	 * 
+	 * @throws IOException
+	 *             if any write operation failed
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+			if (error == null) {
+				ByteBuffer count = ByteBuffer.allocate(4);
+				count.order(ByteOrder.LITTLE_ENDIAN);
+				count.putInt(numTriangles).flip();
+				channel.write(count, HEADER_SIZE);
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			file.close();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * @return number of triangles written so far
+	 */
+	public int getNumTriangles() {
+		return numTriangles;
+	}
+
+	private void flush() {
+		if (error != null) {
+			return;
+		}
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			error = e;
+		}
+		buffer.clear();
+	}
+
+	private void putVertex(Vec3D v) {
+		buffer.putFloat(v.x).putFloat(v.y).putFloat(v.z);
+	}
+}